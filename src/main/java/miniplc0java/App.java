@@ -1,22 +1,38 @@
 package miniplc0java;
 
-import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
 import java.util.List;
-import java.util.Scanner;
+import java.util.Map;
 
 import miniplc0java.analyser.Analyser;
+import miniplc0java.ast.CodeGenerator;
 import miniplc0java.error.CompileError;
 import miniplc0java.instruction.Instruction;
+import miniplc0java.instruction.InstructionSink;
+import miniplc0java.instruction.PrintSink;
+import miniplc0java.optimizer.DeadCodeEliminator;
+import miniplc0java.optimizer.Optimizer;
+import miniplc0java.optimizer.Precomputer;
+import miniplc0java.optimizer.Rules;
+import miniplc0java.optimizer.Superinstructions;
+import miniplc0java.tokenizer.ParallelTokenizer;
 import miniplc0java.tokenizer.StringIter;
-import miniplc0java.tokenizer.Token;
-import miniplc0java.tokenizer.TokenType;
+import miniplc0java.tokenizer.TokenBuffer;
+import miniplc0java.tokenizer.TokenPipeline;
 import miniplc0java.tokenizer.Tokenizer;
+import miniplc0java.vm.ClosureVm;
+import miniplc0java.vm.Engine;
+import miniplc0java.vm.JitVm;
+import miniplc0java.vm.MiniVm;
+import miniplc0java.vm.StreamingVm;
+import miniplc0java.vm.register.RegisterVm;
 
 import net.sourceforge.argparse4j.*;
 import net.sourceforge.argparse4j.impl.Arguments;
@@ -39,13 +55,42 @@ public class App {
         var inputFileName = result.getString("input");
         var outputFileName = result.getString("output");
 
-        InputStream input;
-        if (inputFileName.equals("-")) {
-            input = System.in;
+        // 整个源文件，流式读取时为 null
+        ByteBuffer source = null;
+        StringIter iter;
+        if (result.getBoolean("stream")) {
+            // 流式读取，只保留固定大小的窗口
+            InputStream input;
+            if (inputFileName.equals("-")) {
+                input = System.in;
+            } else {
+                try {
+                    input = new FileInputStream(inputFileName);
+                } catch (FileNotFoundException e) {
+                    System.err.println("Cannot find input file.");
+                    e.printStackTrace();
+                    System.exit(2);
+                    return;
+                }
+            }
+            iter = new StringIter(input, StringIter.DEFAULT_WINDOW_SIZE);
+        } else if (inputFileName.equals("-")) {
+            // 标准输入没法映射，一次性读入
+            try {
+                source = ByteBuffer.wrap(System.in.readAllBytes());
+                iter = new StringIter(source);
+            } catch (IOException e) {
+                System.err.println("Cannot read input.");
+                e.printStackTrace();
+                System.exit(2);
+                return;
+            }
         } else {
+            // 文件直接映射到内存
             try {
-                input = new FileInputStream(inputFileName);
-            } catch (FileNotFoundException e) {
+                source = StringIter.map(Path.of(inputFileName));
+                iter = new StringIter(source);
+            } catch (IOException e) {
                 System.err.println("Cannot find input file.");
                 e.printStackTrace();
                 System.exit(2);
@@ -67,48 +112,117 @@ public class App {
             }
         }
 
-        Scanner scanner;
-        scanner = new Scanner(input);
-        var iter = new StringIter(scanner);
         var tokenizer = tokenize(iter);
+        // 并行分析需要整个源文件，流式读取时只能顺序分析
+        int jobs = source == null ? 1 : result.getInt("jobs");
 
         if (result.getBoolean("tokenize")) {
             // tokenize
-            var tokens = new ArrayList<Token>();
-            try {
-                while (true) {
-                    var token = tokenizer.nextToken();
-                    if (token.getTokenType().equals(TokenType.EOF)) {
-                        break;
-                    }
-                    tokens.add(token);
-                }
-            } catch (Exception e) {
+            var tokens = jobs > 1 ? ParallelTokenizer.tokenize(source, jobs) : TokenBuffer.tokenize(tokenizer);
+            if (tokens.getError() != null) {
                 // 遇到错误不输出，直接退出
-                System.err.println(e);
+                System.err.println(tokens.getError());
                 System.exit(0);
                 return;
             }
-            for (Token token : tokens) {
-                output.println(token.toString());
+            // 最后一个是 EOF，不输出
+            for (int i = 0; i < tokens.size() - 1; i++) {
+                output.println(tokens.get(i).toString());
             }
-        } else if (result.getBoolean("analyse")) {
+        } else if (result.getBoolean("analyse") || result.getBoolean("run")) {
             // analyze
-            var analyzer = new Analyser(tokenizer);
+            Analyser analyzer;
+            // 分析结束（包括出错）后要关闭，否则词法分析线程会一直等着
+            TokenPipeline pipeline = null;
+            if (jobs > 1) {
+                // 词法分析和声明之后的语句序列都并行进行
+                analyzer = new Analyser(ParallelTokenizer.tokenize(source, jobs), jobs);
+            } else if (result.getBoolean("pipeline")) {
+                // 词法分析在另一个线程上进行
+                pipeline = new TokenPipeline(tokenizer).start();
+                analyzer = new Analyser(pipeline);
+            } else {
+                analyzer = new Analyser(tokenizer);
+            }
+            // 流式读取时，如果不需要看到整个程序，就边分析边输出（或者执行）
+            boolean streaming = result.getBoolean("stream") && result.getInt("optimize") == 0
+                    && !result.getBoolean("precompute") && !result.getBoolean("ast")
+                    && (!result.getBoolean("run") || result.getString("engine").equals("interp"));
+            if (streaming) {
+                InstructionSink sink = result.getBoolean("run") ? new StreamingVm(output) : new PrintSink(output);
+                try {
+                    analyzer.analyse(sink);
+                } catch (CompileError e) {
+                    // 之前的语句已经输出了
+                    output.flush();
+                    System.err.println(e);
+                    System.exit(0);
+                    return;
+                } catch (RuntimeException | Error e) {
+                    output.flush();
+                    System.err.println(e);
+                    System.exit(1);
+                    return;
+                } finally {
+                    if (pipeline != null) {
+                        pipeline.close();
+                    }
+                }
+                output.flush();
+                return;
+            }
             List<Instruction> instructions;
             try {
-                instructions = analyzer.analyse();
+                if (result.getBoolean("ast")) {
+                    // 先建语法树，再由它生成代码
+                    instructions = new CodeGenerator(analyzer.analyseAst()).generate();
+                } else {
+                    instructions = analyzer.analyse();
+                }
             } catch (Exception e) {
                 // 遇到错误不输出，直接退出
                 System.err.println(e);
                 System.exit(0);
                 return;
+            } finally {
+                if (pipeline != null) {
+                    pipeline.close();
+                }
             }
-            for (Instruction instruction : instructions) {
-                output.println(instruction.toString());
+            boolean precomputed = false;
+            if (result.getBoolean("precompute")) {
+                // 程序没有输入，能在编译时执行完就只输出结果
+                var values = new Precomputer().precompute(instructions);
+                if (values != null) {
+                    System.err.println("precompute: removed " + (instructions.size() - values.size()));
+                    instructions = values;
+                    precomputed = true;
+                } else {
+                    System.err.println("precompute: fell back to normal code");
+                }
+            }
+            if (!precomputed) {
+                instructions = optimize(instructions, result.getInt("optimize"), result.getBoolean("run"));
+            }
+            if (result.getBoolean("run")) {
+                // 直接执行，程序的输出写到输出文件
+                var engine = createEngine(result.getString("engine"), instructions, output);
+                try {
+                    engine.Run();
+                } catch (RuntimeException | Error e) {
+                    output.flush();
+                    System.err.println(e);
+                    System.exit(1);
+                    return;
+                }
+                output.flush();
+            } else {
+                for (Instruction instruction : instructions) {
+                    output.println(instruction.toString());
+                }
             }
         } else {
-            System.err.println("Please specify either '--analyse' or '--tokenize'.");
+            System.err.println("Please specify either '--analyse', '--run' or '--tokenize'.");
             System.exit(3);
         }
     }
@@ -118,12 +232,84 @@ public class App {
         var parser = builder.build();
         parser.addArgument("-t", "--tokenize").help("Tokenize the input").action(Arguments.storeTrue());
         parser.addArgument("-l", "--analyse").help("Analyze the input").action(Arguments.storeTrue());
+        parser.addArgument("-r", "--run").help("Analyze the input and execute it").action(Arguments.storeTrue());
+        parser.addArgument("--engine").help("Execution engine used by --run").choices("interp", "closure", "register", "jit")
+                .setDefault("interp").action(Arguments.store());
+        parser.addArgument("-O")
+                .help("Optimization level: 0 disables optimization, 1 enables peephole rules, "
+                        + "2 also removes dead code, applies strength reduction and fuses superinstructions for --run")
+                .type(Integer.class).choices(0, 1, 2).setDefault(0).dest("optimize").action(Arguments.store());
+        parser.addArgument("--precompute")
+                .help("Evaluate the program at compile time and emit only its output when it finishes without errors")
+                .action(Arguments.storeTrue());
+        parser.addArgument("--stream").help("Read the input through a fixed-size window instead of loading it whole, "
+                + "and emit each statement as soon as it is analysed unless -O, --precompute or --ast needs the whole program "
+                + "(earlier statements are already emitted when an error is found)")
+                .action(Arguments.storeTrue());
+        parser.addArgument("-j", "--jobs").help("Tokenize and analyse the input on this many threads (ignored with --stream)")
+                .type(Integer.class).setDefault(1).action(Arguments.store());
+        parser.addArgument("--ast").help("Build an AST before generating code instead of generating it while parsing")
+                .action(Arguments.storeTrue());
+        parser.addArgument("--pipeline").help("Run the tokenizer on a separate thread while analysing")
+                .action(Arguments.storeTrue());
         parser.addArgument("-o", "--output").help("Set the output file").required(true).dest("output")
                 .action(Arguments.store());
         parser.addArgument("file").required(true).dest("input").action(Arguments.store()).help("Input file");
         return parser;
     }
 
+    /**
+     * 按优化级别依次执行各个优化，统计信息输出到标准错误，不影响输出文件
+     *
+     * @param instructions 指令序列
+     * @param level        优化级别
+     * @param forRun       是否直接执行，超级指令只在执行时合成
+     * @return 优化后的指令序列
+     */
+    private static List<Instruction> optimize(List<Instruction> instructions, int level, boolean forRun) {
+        if (level >= 1) {
+            var optimizer = new Optimizer();
+            instructions = optimizer.optimize(instructions);
+            report(optimizer.getRemovedCounts(), "removed");
+        }
+        if (level >= 2) {
+            var eliminator = new DeadCodeEliminator();
+            instructions = eliminator.eliminate(instructions);
+            report(eliminator.getRemovedCounts(), "removed");
+            // 强度削减生成的扩展指令在输出时展开回乘除，所以输出不变
+            var optimizer = new Optimizer(Rules.STRENGTH_REDUCTION);
+            instructions = optimizer.optimize(instructions);
+            report(optimizer.getRemovedCounts(), "removed");
+            if (forRun) {
+                // 超级指令只影响执行，输出时总是展开成基本指令
+                var superinstructions = new Superinstructions();
+                instructions = superinstructions.fuse(instructions);
+                report(superinstructions.getFusedCounts(), "fused");
+            }
+        }
+        return instructions;
+    }
+
+    private static void report(Map<?, Integer> counts, String verb) {
+        for (var entry : counts.entrySet()) {
+            System.err.println(entry.getKey() + ": " + verb + " " + entry.getValue());
+        }
+    }
+
+    private static Engine createEngine(String name, List<Instruction> instructions, PrintStream output) {
+        switch (name) {
+            case "closure":
+                return new ClosureVm(instructions, output);
+            case "register":
+                return new RegisterVm(instructions, output);
+            case "jit":
+                return new JitVm(instructions, output);
+            case "interp":
+            default:
+                return new MiniVm(instructions, output);
+        }
+    }
+
     private static Tokenizer tokenize(StringIter iter) {
         var tokenizer = new Tokenizer(iter);
         return tokenizer;
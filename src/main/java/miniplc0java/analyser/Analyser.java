@@ -1,41 +1,134 @@
 package miniplc0java.analyser;
 
+import miniplc0java.ast.AstArena;
+import miniplc0java.ast.NodeKind;
 import miniplc0java.error.AnalyzeError;
 import miniplc0java.error.CompileError;
 import miniplc0java.error.ErrorCode;
 import miniplc0java.error.ExpectedTokenError;
 import miniplc0java.error.TokenizeError;
 import miniplc0java.instruction.Instruction;
+import miniplc0java.instruction.InstructionBuffer;
+import miniplc0java.instruction.InstructionSink;
 import miniplc0java.instruction.Operation;
 import miniplc0java.tokenizer.Token;
+import miniplc0java.tokenizer.TokenBuffer;
+import miniplc0java.tokenizer.TokenStream;
 import miniplc0java.tokenizer.TokenType;
-import miniplc0java.tokenizer.Tokenizer;
 import miniplc0java.util.Pos;
 
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 public final class Analyser {
+    /** 并行分析语句时每一段至少有这么多 token，太短的语句序列直接顺序分析 */
+    static final int MIN_CHUNK_TOKENS = 16 * 1024;
 
-    Tokenizer tokenizer;
+    TokenStream tokenizer;
+    /** 当前语句已经生成、还没交给 sink 的指令。常数折叠只看同一条语句里的指令，所以只要留住这一段 */
     ArrayList<Instruction> instructions;
+    /** 分析完一条语句就把它的指令交给 sink；并行分析其中一段时为 null，指令留在 instructions 里 */
+    InstructionSink sink = null;
+
+    /** 直接从 TokenBuffer 读取时的游标，查看类型不需要创建 Token 对象 */
+    TokenBuffer.Cursor cursor = null;
+    TokenBuffer tokens = null;
+
+    /** 分析语句序列的线程数 */
+    int jobs = 1;
+
+    /**
+     * 并行分析一段语句时，这一段里赋过值的变量。
+     * 符号表被所有线程共享，只读；为 null 表示不是在分析其中一段
+     */
+    BitSet assigned = null;
+
+    /** 并行分析一段语句时，读过、但在这一段里还没赋过值的变量，要等前面的段合并之后再检查 */
+    int[] deferred = new int[16];
+    int deferredCount = 0;
+
+    /** 并行分析一段语句时，是否没有出错并且正好在段尾结束 */
+    boolean chunkComplete = false;
 
     /** 当前偷看的 token */
     Token peekedToken = null;
 
-    /** 符号表 */
-    HashMap<String, SymbolEntry> symbolTable = new HashMap<>();
+    /** 符号表，按 token 里的标识符编号访问 */
+    SymbolTable symbolTable = new SymbolTable();
 
     /** 下一个变量的栈偏移 */
     int nextOffset = 0;
 
-    public Analyser(Tokenizer tokenizer) {
+    /** 建语法树时的结果，直接生成指令时为 null */
+    AstArena ast = null;
+
+    /** 建语法树时还没被用掉的表达式节点，和执行时的栈一一对应 */
+    int[] nodes = new int[64];
+    int nodeCount = 0;
+
+    /** 分析表达式时的运算符栈：二元运算、NEG 表示取负、null 表示左括号 */
+    Operation[] operators = new Operation[64];
+    int operatorCount = 0;
+
+    public Analyser(TokenStream tokenizer) {
         this.tokenizer = tokenizer;
         this.instructions = new ArrayList<>();
     }
 
+    public Analyser(TokenBuffer tokens) {
+        this(tokens.cursor());
+        this.cursor = (TokenBuffer.Cursor) this.tokenizer;
+        this.tokens = tokens;
+    }
+
+    /**
+     * @param tokens 全部 token
+     * @param jobs   声明之后的语句序列用多少个线程并行分析
+     */
+    public Analyser(TokenBuffer tokens, int jobs) {
+        this(tokens);
+        this.jobs = jobs;
+    }
+
+    /**
+     * 并行分析时负责其中一段语句的分析器，和 parent 共享符号表
+     */
+    private Analyser(Analyser parent, int start) {
+        this(parent.tokens);
+        seek(start);
+        this.symbolTable = parent.symbolTable;
+        this.assigned = new BitSet();
+    }
+
     public List<Instruction> analyse() throws CompileError {
+        var buffer = new InstructionBuffer();
+        analyse(buffer);
+        return buffer.getInstructions();
+    }
+
+    /**
+     * 分析整个程序，每分析完一条语句就把它的指令交给 sink，不保存整个程序。
+     * 遇到错误时，之前的语句已经交出去了
+     *
+     * @param sink 接收指令
+     * @throws CompileError 编译错误
+     */
+    public void analyse(InstructionSink sink) throws CompileError {
+        this.sink = sink;
+        analyseProgram();
+    }
+
+    /**
+     * 分析整个程序，不直接生成指令，而是建出语法树，交给 CodeGenerator 生成代码
+     *
+     * @return 语法树，常数子表达式已经折叠
+     * @throws CompileError 编译错误
+     */
+    public AstArena analyseAst() throws CompileError {
+        ast = new AstArena();
         analyseProgram();
-        return instructions;
+        return ast;
     }
 
     /**
@@ -45,6 +138,9 @@ public final class Analyser {
      * @throws TokenizeError 返回词法分析错误
      */
     private Token peek() throws TokenizeError {
+        if (cursor != null) {
+            return cursor.peekToken();
+        }
         if (peekedToken == null) {
             peekedToken = tokenizer.nextToken();
         }
@@ -58,6 +154,9 @@ public final class Analyser {
      * @throws TokenizeError 词法分析错误
      */
     private Token next() throws TokenizeError {
+        if (cursor != null) {
+            return cursor.nextToken();
+        }
         if (peekedToken != null) {
             var token = peekedToken;
             peekedToken = null;
@@ -75,6 +174,9 @@ public final class Analyser {
      * @throws TokenizeError 词法分析错误
      */
     private boolean check(TokenType tt) throws TokenizeError {
+        if (cursor != null) {
+            return cursor.peekType() == tt;
+        }
         var token = peek();
         return token.getTokenType() == tt;
     }
@@ -87,8 +189,7 @@ public final class Analyser {
      * @throws TokenizeError 词法分析错误
      */
     private Token nextIf(TokenType tt) throws TokenizeError {
-        var token = peek();
-        if (token.getTokenType() == tt) {
+        if (check(tt)) {
             return next();
         } else {
             return null;
@@ -103,11 +204,10 @@ public final class Analyser {
      * @throws CompileError 如果类型不匹配
      */
     private Token expect(TokenType tt) throws CompileError {
-        var token = peek();
-        if (token.getTokenType() == tt) {
+        if (check(tt)) {
             return next();
         } else {
-            throw new ExpectedTokenError(tt, token);
+            throw new ExpectedTokenError(tt, peek());
         }
     }
 
@@ -122,67 +222,79 @@ public final class Analyser {
     /**
      * 添加一个符号
      * 
-     * @param name          名字
+     * @param id            标识符编号
      * @param isInitialized 是否已赋值
-     * @param isConstant    是否是常量
      * @param curPos        当前 token 的位置（报错用）
      * @throws AnalyzeError 如果重复定义了则抛异常
      */
-    private void addSymbol(String name, boolean isInitialized, boolean isConstant, Pos curPos) throws AnalyzeError {
-        if (this.symbolTable.get(name) != null) {
+    private void addSymbol(int id, boolean isInitialized, Pos curPos) throws AnalyzeError {
+        if (this.symbolTable.isDeclared(id)) {
             throw new AnalyzeError(ErrorCode.DuplicateDeclaration, curPos);
         } else {
-            this.symbolTable.put(name, new SymbolEntry(isConstant, isInitialized, getNextVariableOffset()));
+            this.symbolTable.declareVariable(id, isInitialized, getNextVariableOffset());
+        }
+    }
+
+    /**
+     * 添加一个常量，常量不占栈上的位置，使用的地方直接换成它的值
+     *
+     * @param id     标识符编号
+     * @param value  常量的值
+     * @param curPos 当前 token 的位置（报错用）
+     * @throws AnalyzeError 如果重复定义了则抛异常
+     */
+    private void addConstant(int id, int value, Pos curPos) throws AnalyzeError {
+        if (this.symbolTable.isDeclared(id)) {
+            throw new AnalyzeError(ErrorCode.DuplicateDeclaration, curPos);
+        } else {
+            this.symbolTable.declareConstant(id, value);
         }
     }
 
     /**
      * 设置符号为已赋值
      * 
-     * @param name   符号名称
+     * @param id     标识符编号
      * @param curPos 当前位置（报错用）
      * @throws AnalyzeError 如果未定义则抛异常
      */
-    private void initializeSymbol(String name, Pos curPos) throws AnalyzeError {
-        var entry = this.symbolTable.get(name);
-        if (entry == null) {
+    private void initializeSymbol(int id, Pos curPos) throws AnalyzeError {
+        if (!this.symbolTable.isDeclared(id)) {
             throw new AnalyzeError(ErrorCode.NotDeclared, curPos);
         } else {
-            entry.setInitialized(true);
+            this.symbolTable.setInitialized(id);
         }
     }
 
     /**
      * 获取变量在栈上的偏移
      * 
-     * @param name   符号名
+     * @param id     标识符编号
      * @param curPos 当前位置（报错用）
      * @return 栈偏移
      * @throws AnalyzeError 语法分析错误
      */
-    private int getOffset(String name, Pos curPos) throws AnalyzeError {
-        var entry = this.symbolTable.get(name);
-        if (entry == null) {
+    private int getOffset(int id, Pos curPos) throws AnalyzeError {
+        if (!this.symbolTable.isDeclared(id)) {
             throw new AnalyzeError(ErrorCode.NotDeclared, curPos);
         } else {
-            return entry.getStackOffset();
+            return this.symbolTable.getStackOffset(id);
         }
     }
 
     /**
      * 获取变量是否是常量
      * 
-     * @param name   符号名
+     * @param id     标识符编号
      * @param curPos 当前位置（报错用）
      * @return 是否为常量
      * @throws AnalyzeError 语法分析错误
      */
-    private boolean isConstant(String name, Pos curPos) throws AnalyzeError {
-        var entry = this.symbolTable.get(name);
-        if (entry == null) {
+    private boolean isConstant(int id, Pos curPos) throws AnalyzeError {
+        if (!this.symbolTable.isDeclared(id)) {
             throw new AnalyzeError(ErrorCode.NotDeclared, curPos);
         } else {
-            return entry.isConstant();
+            return this.symbolTable.isConstant(id);
         }
     }
 
@@ -212,7 +324,11 @@ public final class Analyser {
         // 变量声明
         analyseVariableDeclaration();
         // 语句序列
-        analyseStatementSequence();
+        if (jobs > 1 && tokens != null && ast == null) {
+            analyseStatementSequenceParallel();
+        } else {
+            analyseStatementSequence();
+        }
     }
 
     /**
@@ -226,9 +342,10 @@ public final class Analyser {
             // 常量声明语句：
             // 标识符
             var nameToken = expect(TokenType.Ident);
-
-            // 添加符号至符号表
-            addSymbol((String) nameToken.getValue(), true, true, nameToken.getStartPos());
+            // 重复定义在读常表达式之前报错，和以前一样
+            if (this.symbolTable.isDeclared(nameToken.getIdentifierId())) {
+                throw new AnalyzeError(ErrorCode.DuplicateDeclaration, nameToken.getStartPos());
+            }
 
             // 等于号
             expect(TokenType.Equal);
@@ -236,11 +353,8 @@ public final class Analyser {
             var value = analyseConstantExpression();
             // 分号
             expect(TokenType.Semicolon);
-            // 这里直接把常量值放入栈里，位置和符号表记录的一样
-            // 更高级的程序还可以把常量的值记录下来，遇到相应的变量直接替换成这个常数值
-            // 我们这里就先不这么干了
-            instructions.add(new Instruction(Operation.LIT, value));
-
+            // 只把常量的值记在符号表里，不占栈上的位置；遇到这个常量时直接换成 LIT
+            addConstant(nameToken.getIdentifierId(), value, nameToken.getStartPos());
         }
     }
 
@@ -291,11 +405,10 @@ public final class Analyser {
             expect(TokenType.Semicolon);
 
             // 添加至符号表
-            addSymbol((String) nameToken.getValue(), isInitialized, false, nameToken.getStartPos());
+            addSymbol(nameToken.getIdentifierId(), isInitialized, nameToken.getStartPos());
             // 如果没有初始化的话在栈内推入一个初始值
-            if (!isInitialized){
-                instructions.add(new Instruction(Operation.LIT, 0));
-            }
+            emitDeclare(isInitialized, nextOffset - 1);
+            flushStatement();
         }
     }
 
@@ -322,6 +435,126 @@ public final class Analyser {
         }
     }
 
+    /**
+     * 声明分析完之后符号表就确定了，只有变量是否已赋值还会变。
+     * 把语句序列在分号后面切成几段并行分析，每一段先假设没赋过值的变量可能在前面的段里被赋值，
+     * 合并时再按源代码的顺序检查。
+     * 某一段出错、检查不通过或者没有正好在段尾结束时，从这一段开头起改为顺序分析，报出的错误和顺序分析完全一样
+     *
+     * @throws CompileError
+     */
+    private void analyseStatementSequenceParallel() throws CompileError {
+        var bounds = splitStatements(cursor.getIndex());
+        if (bounds.size() <= 2) {
+            analyseStatementSequence();
+            return;
+        }
+
+        var tasks = new ArrayList<ForkJoinTask<Analyser>>();
+        var pool = new ForkJoinPool(jobs);
+        try {
+            for (int i = 0; i + 1 < bounds.size(); i++) {
+                int start = bounds.get(i);
+                // 最后一段一直分析到语句序列结束
+                int end = i + 2 == bounds.size() ? -1 : bounds.get(i + 1);
+                tasks.add(pool.submit(() -> {
+                    var worker = new Analyser(this, start);
+                    worker.analyseChunk(end);
+                    return worker;
+                }));
+            }
+            // 全部结束之后再合并，合并时会修改共享的符号表
+            var workers = new ArrayList<Analyser>();
+            for (var task : tasks) {
+                workers.add(task.join());
+            }
+            for (int i = 0; i < workers.size(); i++) {
+                var worker = workers.get(i);
+                if (!worker.isChunkComplete() || !worker.deferredInitialized()) {
+                    seek(bounds.get(i));
+                    analyseStatementSequence();
+                    return;
+                }
+                for (var instruction : worker.instructions) {
+                    sink.emit(instruction);
+                }
+                for (int id = worker.assigned.nextSetBit(0); id >= 0; id = worker.assigned.nextSetBit(id + 1)) {
+                    symbolTable.setInitialized(id);
+                }
+            }
+            seek(workers.get(workers.size() - 1).cursor.getIndex());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * 分析 [当前位置, end) 里的语句，end 为 -1 时分析到语句序列结束。出错时停下，由合并时重新顺序分析
+     */
+    private void analyseChunk(int end) {
+        try {
+            while (end < 0 || cursor.getIndex() < end) {
+                if (check(TokenType.Ident)) {
+                    analyseAssignmentStatement();
+                } else if (check(TokenType.Print)) {
+                    analyseOutputStatement();
+                } else if (check(TokenType.Semicolon)) {
+                    expect(TokenType.Semicolon);
+                } else {
+                    break;
+                }
+            }
+            chunkComplete = end < 0 || cursor.getIndex() == end;
+        } catch (CompileError e) {
+            chunkComplete = false;
+        }
+    }
+
+    private boolean isChunkComplete() {
+        return chunkComplete;
+    }
+
+    /**
+     * @return 推迟检查的变量在前面的段合并之后是否都已经赋值
+     */
+    private boolean deferredInitialized() {
+        for (int i = 0; i < deferredCount; i++) {
+            if (!symbolTable.isInitialized(deferred[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 计算语句序列的切分点，每个切分点都紧跟在一个分号后面
+     *
+     * @param start 语句序列开头的 token 下标
+     * @return 从 start 开始的切分点，最后一个是 token 总数；最后一段实际分析到语句序列结束为止
+     */
+    private ArrayList<Integer> splitStatements(int start) {
+        int size = tokens.size();
+        var bounds = new ArrayList<Integer>();
+        bounds.add(start);
+        int chunks = Math.min(jobs, (size - start) / MIN_CHUNK_TOKENS);
+        for (int i = 1; i < chunks; i++) {
+            int index = Math.max(start + (int) ((long) (size - start) * i / chunks), bounds.get(bounds.size() - 1));
+            while (index < size && tokens.getType(index) != TokenType.Semicolon) {
+                index++;
+            }
+            if (index + 1 < size && index + 1 > bounds.get(bounds.size() - 1)) {
+                bounds.add(index + 1);
+            }
+        }
+        bounds.add(size);
+        return bounds;
+    }
+
+    private void seek(int index) {
+        cursor = tokens.cursor(index);
+        tokenizer = cursor;
+    }
+
 
     /**
      * @throws CompileError
@@ -338,23 +571,27 @@ public final class Analyser {
         expect(TokenType.Semicolon);
 
         // 企图从符号表中拿值
-        String name = (String) nameToken.getValue();
-        var symbol = symbolTable.get(name);
+        int id = nameToken.getIdentifierId();
         // 返回符号判断
-        if (symbol == null){
+        if (!symbolTable.isDeclared(id)){
             // 没有这个标识符
             throw new AnalyzeError(ErrorCode.AssignToConstant, nameToken.getStartPos());
         }
-        else if (symbol.isConstant()){
+        else if (symbolTable.isConstant(id)){
             // 标识符是常量
             throw new AnalyzeError(ErrorCode.AssignToConstant, nameToken.getStartPos());
         }
 
-        // 设置符号已经初始化
-        initializeSymbol(name, null);
+        // 设置符号已经初始化；并行分析时只记在这一段里
+        if (assigned != null) {
+            assigned.set(id);
+        } else {
+            initializeSymbol(id, null);
+        }
         // 把结果保存
-        var offset = getOffset(name, null);
-        instructions.add(new Instruction(Operation.STO, offset));
+        var offset = getOffset(id, null);
+        emitStore(offset);
+        flushStatement();
     }
 
     /**
@@ -367,101 +604,291 @@ public final class Analyser {
         analyseExpression();
         expect(TokenType.RParen);
         expect(TokenType.Semicolon);
-        instructions.add(new Instruction(Operation.WRT));
+        emitPrint();
+        flushStatement();
     }
 
     /**
+     * 用显式的运算符栈分析表达式，括号嵌套的深度只受堆内存限制。
+     * 生成的代码和按文法递归下降完全相同：二元运算左结合，乘除优先于加减，
+     * 符号属于因子，在因子分析完之后立刻取负
+     *
      * @throws CompileError
      * <表达式> ::= <项>{<加法型运算符><项>}
+     * <项> ::= <因子>{<乘法型运算符><因子>}
+     * <因子> ::= [<符号>]( <标识符> | <无符号整数> | '('<表达式>')' )
      */
     private void analyseExpression() throws CompileError {
-        // 项
-        analyseItem();
-        while (check(TokenType.Plus)||check(TokenType.Minus)){
-            // 加法型运算符
-            var op = next();
-            // 项
-            analyseItem();
-            // 生成代码
-            if (op.getTokenType()==TokenType.Plus){
-                instructions.add(new Instruction(Operation.ADD));
+        int bottom = operatorCount;
+        while (true) {
+            // 因子开头的符号和左括号
+            while (true) {
+                if (nextIf(TokenType.Minus) != null) {
+                    pushOperator(Operation.NEG);
+                } else {
+                    nextIf(TokenType.Plus);
+                }
+                if (nextIf(TokenType.LParen) == null) {
+                    break;
+                }
+                pushOperator(null);
             }
-            else if (op.getTokenType()==TokenType.Minus){
-                instructions.add(new Instruction(Operation.SUB));
+            analysePrimary();
+
+            // 因子结束：先取负，再看后面是运算符、右括号还是表达式的结尾
+            while (true) {
+                if (operatorCount > bottom && operators[operatorCount - 1] == Operation.NEG) {
+                    operatorCount--;
+                    emitNegate();
+                }
+                Operation op;
+                if (check(TokenType.Mult)) {
+                    op = Operation.MUL;
+                } else if (check(TokenType.Div)) {
+                    op = Operation.DIV;
+                } else if (check(TokenType.Plus)) {
+                    op = Operation.ADD;
+                } else if (check(TokenType.Minus)) {
+                    op = Operation.SUB;
+                } else {
+                    op = null;
+                }
+                if (op != null) {
+                    next();
+                    // 左结合：先算掉栈里优先级不低于它的运算
+                    popOperators(bottom, precedence(op));
+                    pushOperator(op);
+                    break;
+                }
+                popOperators(bottom, 0);
+                if (operatorCount == bottom) {
+                    return;
+                }
+                // 栈顶是左括号，括号里的表达式结束了，整个括号是一个因子
+                expect(TokenType.RParen);
+                operatorCount--;
             }
         }
     }
 
     /**
-     * @throws CompileError
-     * <项> ::= <因子>{<乘法型运算符><因子>}
+     * <标识符> | <无符号整数>，其余情况报错
      */
-    private void analyseItem() throws CompileError {
-        // 因子
-        analyseFactor();
-        // {<乘法型运算符><因子>}
-        while (check(TokenType.Mult)||check(TokenType.Div)){
-            // 读取操作符
-            Token op = next();
-            // 因子
-            analyseFactor();
-            // 生成代码
-            if (op.getTokenType()==TokenType.Mult){
-                instructions.add(new Instruction(Operation.MUL));
+    private void analysePrimary() throws CompileError {
+        if (check(TokenType.Ident)) {
+            // 标识符token
+            var token = expect(TokenType.Ident);
+            // 加载标识符的值
+            int id = token.getIdentifierId();
+            if (!symbolTable.isDeclared(id)){
+                // 之前没有声明标识符
+                throw new AnalyzeError(ErrorCode.NotDeclared, token.getStartPos());
+            }else if (!symbolTable.isInitialized(id)){
+                if (assigned == null) {
+                    // 标识符未初始化
+                    throw new AnalyzeError(ErrorCode.NotInitialized, token.getStartPos());
+                }
+                // 并行分析时可能在前面的段里赋过值，合并时再检查
+                if (!assigned.get(id)) {
+                    defer(id);
+                }
             }
-            else if(op.getTokenType()==TokenType.Div){
-                instructions.add(new Instruction(Operation.DIV));
+            if (symbolTable.isConstant(id)) {
+                // 常量直接换成它的值
+                emitLiteral(symbolTable.getConstantValue(id));
+            } else {
+                // 加载栈内存储的标识符的值
+                var offset = getOffset(id, null);
+                emitLoad(offset);
             }
+        } else if (check(TokenType.Uint)) {
+            // 如果下一个token是整数
+            emitLiteral((int) next().getValue());
+        } else {
+            // 都不是，摸了
+            throw new ExpectedTokenError(List.of(TokenType.Ident, TokenType.Uint, TokenType.LParen), next());
         }
+    }
+
+    /**
+     * 弹出并生成栈顶优先级不低于 minPrecedence 的二元运算，遇到左括号或者 bottom 为止
+     */
+    private void popOperators(int bottom, int minPrecedence) {
+        while (operatorCount > bottom) {
+            var op = operators[operatorCount - 1];
+            if (op == null || precedence(op) < minPrecedence) {
+                return;
+            }
+            operatorCount--;
+            emitBinary(op);
+        }
+    }
+
+    private static int precedence(Operation op) {
+        return op == Operation.MUL || op == Operation.DIV ? 2 : 1;
+    }
 
+    private void pushOperator(Operation op) {
+        if (operatorCount == operators.length) {
+            operators = Arrays.copyOf(operators, operatorCount * 2);
+        }
+        operators[operatorCount++] = op;
     }
 
+    /*
+     * 代码生成都经过下面这些 emit 方法：直接生成指令时追加到 instructions，
+     * 建语法树时在 nodes 上模拟执行时的栈，把表达式拼成节点，语句记到 ast 里
+     */
+
     /**
-     * @throws CompileError
-     * <因子> ::= [<符号>]( <标识符> | <无符号整数> | '('<表达式>')' )
+     * 一条语句分析完了，把它的指令交给 sink
      */
-    private void analyseFactor() throws CompileError {
-        boolean negate;
-        if (nextIf(TokenType.Minus) != null) {
-            negate = true;
-            // 计算结果需要被 0 减
+    private void flushStatement() {
+        if (sink == null) {
+            return;
+        }
+        for (var instruction : instructions) {
+            sink.emit(instruction);
+        }
+        instructions.clear();
+    }
+
+    private void emitLiteral(int value) {
+        if (ast != null) {
+            pushNode(ast.literal(value));
+        } else {
+            instructions.add(new Instruction(Operation.LIT, value));
+        }
+    }
+
+    private void emitLoad(int offset) {
+        if (ast != null) {
+            pushNode(ast.load(offset));
+        } else {
+            instructions.add(new Instruction(Operation.LOD, offset));
+        }
+    }
+
+    /**
+     * 声明一个变量。有初始值时值已经在栈顶，就是这个变量的位置；没有时压入 0
+     */
+    private void emitDeclare(boolean isInitialized, int offset) {
+        if (ast != null) {
+            ast.declare(isInitialized ? popNode() : -1, offset);
+        } else if (!isInitialized) {
             instructions.add(new Instruction(Operation.LIT, 0));
+        }
+    }
+
+    private void emitStore(int offset) {
+        if (ast != null) {
+            ast.assign(popNode(), offset);
         } else {
-            nextIf(TokenType.Plus);
-            negate = false;
+            instructions.add(new Instruction(Operation.STO, offset));
         }
+    }
 
-        if (check(TokenType.Ident)) {
-            // 调用相应的处理函数
-            // 标识符token
-            var token = expect(TokenType.Ident);
-            // 加载标识符的值
-            String name = (String) token.getValue();
-            var symbol = symbolTable.get(name);
-            if (symbol==null){
-                // 之前没有声明标识符
-                throw new AnalyzeError(ErrorCode.NotDeclared, token.getStartPos());
-            }else if (!symbol.isInitialized){
-                // 标识符未初始化
-                throw new AnalyzeError(ErrorCode.NotInitialized, token.getStartPos());
+    private void emitPrint() {
+        if (ast != null) {
+            ast.print(popNode());
+        } else {
+            instructions.add(new Instruction(Operation.WRT));
+        }
+    }
+
+    /**
+     * 对栈顶取负。操作数是常数时直接换成相反数；否则生成 NEG，输出时展开成 LIT -1; MUL
+     */
+    private void emitNegate() {
+        if (ast != null) {
+            int operand = popNode();
+            if (ast.kind(operand) == NodeKind.LITERAL) {
+                int value = ast.first(operand);
+                ast.release(operand);
+                pushNode(ast.literal(-value));
+            } else {
+                pushNode(ast.negate(operand));
             }
-            // 加载栈内存储的标识符的值
-            var offset = getOffset(name, null);
-            instructions.add(new Instruction(Operation.LOD, offset));
-        } else if (check(TokenType.Uint)) {
-            // 如果下一个token是整数
-            instructions.add(new Instruction(Operation.LIT, (int)next().getValue()));
-        } else if (nextIf(TokenType.LParen)!=null) {
-            // 如果下一个语法成分为表达式
-            analyseExpression();
-            expect(TokenType.RParen);
+            return;
+        }
+        int size = instructions.size();
+        var last = instructions.get(size - 1);
+        if (last.getOpt() == Operation.LIT) {
+            last.setX(-last.getX());
         } else {
-            // 都不是，摸了
-            throw new ExpectedTokenError(List.of(TokenType.Ident, TokenType.Uint, TokenType.LParen), next());
+            instructions.add(new Instruction(Operation.NEG));
         }
+    }
 
-        if (negate) {
-            instructions.add(new Instruction(Operation.SUB));
+    /**
+     * 生成一条二元运算指令。如果两个操作数都是常数（最后两条指令都是 LIT），直接算出结果换成一条 LIT；
+     * 除以 0 不折叠，留到运行时报错
+     *
+     * @param op ADD/SUB/MUL/DIV
+     */
+    private void emitBinary(Operation op) {
+        if (ast != null) {
+            int rhs = popNode();
+            int lhs = popNode();
+            if (ast.kind(lhs) == NodeKind.LITERAL && ast.kind(rhs) == NodeKind.LITERAL
+                    && !(op == Operation.DIV && ast.first(rhs) == 0)) {
+                // 两个常量节点是最后分配的，折叠后换成一个节点
+                int value = fold(op, ast.first(lhs), ast.first(rhs));
+                ast.release(lhs);
+                pushNode(ast.literal(value));
+            } else {
+                pushNode(ast.binary(NodeKind.valueOf(op.name()), lhs, rhs));
+            }
+            return;
+        }
+        int size = instructions.size();
+        if (size >= 2) {
+            var lhs = instructions.get(size - 2);
+            var rhs = instructions.get(size - 1);
+            if (lhs.getOpt() == Operation.LIT && rhs.getOpt() == Operation.LIT
+                    && !(op == Operation.DIV && rhs.getX() == 0)) {
+                int value = fold(op, lhs.getX(), rhs.getX());
+                instructions.remove(size - 1);
+                lhs.setX(value);
+                return;
+            }
+        }
+        instructions.add(new Instruction(op));
+    }
+
+    private void defer(int id) {
+        if (deferredCount == deferred.length) {
+            deferred = Arrays.copyOf(deferred, deferredCount * 2);
+        }
+        deferred[deferredCount++] = id;
+    }
+
+    private void pushNode(int node) {
+        if (nodeCount == nodes.length) {
+            nodes = Arrays.copyOf(nodes, nodeCount * 2);
+        }
+        nodes[nodeCount++] = node;
+    }
+
+    private int popNode() {
+        return nodes[--nodeCount];
+    }
+
+    /**
+     * 按虚拟机的语义计算二元运算，溢出时同样回绕
+     */
+    private static int fold(Operation op, int lhs, int rhs) {
+        switch (op) {
+            case ADD:
+                return lhs + rhs;
+            case SUB:
+                return lhs - rhs;
+            case MUL:
+                return lhs * rhs;
+            case DIV:
+                return lhs / rhs;
+            default:
+                throw new IllegalArgumentException(op.toString());
         }
     }
 }
@@ -0,0 +1,65 @@
+package miniplc0java.analyser;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * 符号表，按标识符编号（见 IdentifierTable）直接下标访问。
+ * 每个符号的属性分别放在位集和数组里，不为每个符号创建对象
+ */
+final class SymbolTable {
+    private final BitSet declared = new BitSet();
+    private final BitSet constant = new BitSet();
+    private final BitSet initialized = new BitSet();
+    /** 变量是栈偏移，常量是它的值 */
+    private int[] values = new int[64];
+
+    boolean isDeclared(int id) {
+        return declared.get(id);
+    }
+
+    /**
+     * 声明一个变量，调用前应该先检查是否重复声明
+     */
+    void declareVariable(int id, boolean isInitialized, int stackOffset) {
+        declare(id, stackOffset);
+        initialized.set(id, isInitialized);
+    }
+
+    /**
+     * 声明一个常量，常量不占栈上的位置，只记录它的值
+     */
+    void declareConstant(int id, int value) {
+        declare(id, value);
+        constant.set(id);
+        initialized.set(id);
+    }
+
+    boolean isConstant(int id) {
+        return constant.get(id);
+    }
+
+    boolean isInitialized(int id) {
+        return initialized.get(id);
+    }
+
+    void setInitialized(int id) {
+        initialized.set(id);
+    }
+
+    int getStackOffset(int id) {
+        return values[id];
+    }
+
+    int getConstantValue(int id) {
+        return values[id];
+    }
+
+    private void declare(int id, int value) {
+        if (id >= values.length) {
+            values = Arrays.copyOf(values, Math.max(values.length * 2, id + 1));
+        }
+        declared.set(id);
+        values[id] = value;
+    }
+}
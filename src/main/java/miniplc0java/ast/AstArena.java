@@ -0,0 +1,140 @@
+package miniplc0java.ast;
+
+import java.util.Arrays;
+
+/**
+ * 按列存储的语法树。
+ * 节点用下标表示，种类和两个字段分别放在基本类型数组里，不为每个节点创建对象；
+ * 语句按源代码的顺序另外记录下标。字段的含义见 NodeKind。
+ * <p>
+ * 分析器自底向上建树，子节点总是先于父节点分配
+ */
+public class AstArena {
+    private static final NodeKind[] NODE_KINDS = NodeKind.values();
+
+    /** NodeKind 的序号 */
+    private byte[] kinds = new byte[1024];
+    private int[] firsts = new int[1024];
+    private int[] seconds = new int[1024];
+    private int size = 0;
+
+    private int[] statements = new int[256];
+    private int statementCount = 0;
+
+    /**
+     * @return 整数常量节点
+     */
+    public int literal(int value) {
+        return add(NodeKind.LITERAL, value, 0);
+    }
+
+    /**
+     * @return 读变量的节点
+     */
+    public int load(int offset) {
+        return add(NodeKind.LOAD, offset, 0);
+    }
+
+    /**
+     * @return 取负的节点
+     */
+    public int negate(int operand) {
+        return add(NodeKind.NEGATE, operand, 0);
+    }
+
+    /**
+     * @param kind ADD/SUB/MUL/DIV
+     * @return 二元运算的节点
+     */
+    public int binary(NodeKind kind, int lhs, int rhs) {
+        if (!kind.isBinary()) {
+            throw new IllegalArgumentException(kind.toString());
+        }
+        return add(kind, lhs, rhs);
+    }
+
+    /**
+     * 添加一条变量声明语句
+     *
+     * @param init   初始值的表达式，没有初始值时为 -1
+     * @param offset 变量的栈偏移
+     */
+    public void declare(int init, int offset) {
+        addStatement(add(NodeKind.DECLARE, init, offset));
+    }
+
+    /**
+     * 添加一条赋值语句
+     */
+    public void assign(int expression, int offset) {
+        addStatement(add(NodeKind.ASSIGN, expression, offset));
+    }
+
+    /**
+     * 添加一条输出语句
+     */
+    public void print(int expression) {
+        addStatement(add(NodeKind.PRINT, expression, 0));
+    }
+
+    /**
+     * 丢掉从 node 开始分配的所有节点，用于把刚建好的常量子树换成折叠后的结果。
+     * 这些节点不能被语句引用
+     */
+    public void release(int node) {
+        if (node < 0 || node > size) {
+            throw new IndexOutOfBoundsException(node);
+        }
+        size = node;
+    }
+
+    public NodeKind kind(int node) {
+        return NODE_KINDS[kinds[node]];
+    }
+
+    public int first(int node) {
+        return firsts[node];
+    }
+
+    public int second(int node) {
+        return seconds[node];
+    }
+
+    /**
+     * @return 节点数
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return 第 i 条语句的节点
+     */
+    public int statement(int i) {
+        return statements[i];
+    }
+
+    public int statementCount() {
+        return statementCount;
+    }
+
+    private int add(NodeKind kind, int first, int second) {
+        if (size == kinds.length) {
+            int capacity = size * 2;
+            kinds = Arrays.copyOf(kinds, capacity);
+            firsts = Arrays.copyOf(firsts, capacity);
+            seconds = Arrays.copyOf(seconds, capacity);
+        }
+        kinds[size] = (byte) kind.ordinal();
+        firsts[size] = first;
+        seconds[size] = second;
+        return size++;
+    }
+
+    private void addStatement(int node) {
+        if (statementCount == statements.length) {
+            statements = Arrays.copyOf(statements, statementCount * 2);
+        }
+        statements[statementCount++] = node;
+    }
+}
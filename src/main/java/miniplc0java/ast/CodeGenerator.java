@@ -0,0 +1,111 @@
+package miniplc0java.ast;
+
+import java.util.Arrays;
+import java.util.List;
+
+import miniplc0java.instruction.Instruction;
+import miniplc0java.instruction.InstructionBuffer;
+import miniplc0java.instruction.InstructionSink;
+import miniplc0java.instruction.Operation;
+
+/**
+ * 遍历语法树生成指令，生成的代码和分析器直接生成的完全相同。
+ * 用显式的栈做后序遍历，表达式嵌套再深也不会栈溢出
+ */
+public class CodeGenerator {
+    private final AstArena ast;
+
+    /** 遍历用的栈，非负数 n 表示还没展开的节点 n，~n 表示子节点已经生成完、轮到节点 n 自己 */
+    private int[] stack = new int[64];
+
+    public CodeGenerator(AstArena ast) {
+        this.ast = ast;
+    }
+
+    public List<Instruction> generate() {
+        var buffer = new InstructionBuffer();
+        generate(buffer);
+        return buffer.getInstructions();
+    }
+
+    /**
+     * 按语句的顺序生成指令，交给 sink
+     */
+    public void generate(InstructionSink sink) {
+        for (int i = 0; i < ast.statementCount(); i++) {
+            generate(ast.statement(i), sink);
+        }
+    }
+
+    private void generate(int root, InstructionSink sink) {
+        int sp = 0;
+        stack[sp++] = root;
+        while (sp > 0) {
+            int node = stack[--sp];
+            if (node < 0) {
+                emit(~node, sink);
+                continue;
+            }
+            if (sp + 3 > stack.length) {
+                stack = Arrays.copyOf(stack, stack.length * 2);
+            }
+            stack[sp++] = ~node;
+            var kind = ast.kind(node);
+            // 后压的先生成：右操作数先压栈
+            if (kind.isBinary()) {
+                stack[sp++] = ast.second(node);
+            }
+            if (hasOperand(kind) && ast.first(node) >= 0) {
+                stack[sp++] = ast.first(node);
+            }
+        }
+    }
+
+    private static boolean hasOperand(NodeKind kind) {
+        switch (kind) {
+            case LITERAL:
+            case LOAD:
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    private void emit(int node, InstructionSink sink) {
+        switch (ast.kind(node)) {
+            case LITERAL:
+                sink.emit(new Instruction(Operation.LIT, ast.first(node)));
+                break;
+            case LOAD:
+                sink.emit(new Instruction(Operation.LOD, ast.first(node)));
+                break;
+            case NEGATE:
+                sink.emit(new Instruction(Operation.NEG));
+                break;
+            case ADD:
+                sink.emit(new Instruction(Operation.ADD));
+                break;
+            case SUB:
+                sink.emit(new Instruction(Operation.SUB));
+                break;
+            case MUL:
+                sink.emit(new Instruction(Operation.MUL));
+                break;
+            case DIV:
+                sink.emit(new Instruction(Operation.DIV));
+                break;
+            case DECLARE:
+                // 有初始值时它已经留在栈上，就是这个变量的位置
+                if (ast.first(node) < 0) {
+                    sink.emit(new Instruction(Operation.LIT, 0));
+                }
+                break;
+            case ASSIGN:
+                sink.emit(new Instruction(Operation.STO, ast.second(node)));
+                break;
+            case PRINT:
+                sink.emit(new Instruction(Operation.WRT));
+                break;
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package miniplc0java.ast;
+
+/**
+ * 语法树节点的种类，括号里是节点的两个字段 first、second 的含义
+ */
+public enum NodeKind {
+    /** 整数常量（值，-） */
+    LITERAL,
+    /** 读变量（栈偏移，-） */
+    LOAD,
+    /** 取负（操作数，-） */
+    NEGATE,
+    /** 加法（左操作数，右操作数） */
+    ADD,
+    /** 减法（左操作数，右操作数） */
+    SUB,
+    /** 乘法（左操作数，右操作数） */
+    MUL,
+    /** 除法（左操作数，右操作数） */
+    DIV,
+    /** 变量声明（初始值，没有初始值时为 -1；栈偏移） */
+    DECLARE,
+    /** 赋值语句（表达式，栈偏移） */
+    ASSIGN,
+    /** 输出语句（表达式，-） */
+    PRINT;
+
+    /**
+     * @return 是否是二元运算
+     */
+    public boolean isBinary() {
+        return this == ADD || this == SUB || this == MUL || this == DIV;
+    }
+}
@@ -0,0 +1,60 @@
+package miniplc0java.instruction;
+
+import java.util.List;
+
+/**
+ * 紧凑的字节码格式：每条指令占两个 int，依次是操作码（Operation 的序号）和操作数
+ */
+public final class Bytecode {
+    // 操作码，和 Operation 的序号一致，可以直接用在 switch 里
+    public static final int ILL = 0;
+    public static final int LIT = 1;
+    public static final int LOD = 2;
+    public static final int STO = 3;
+    public static final int ADD = 4;
+    public static final int SUB = 5;
+    public static final int MUL = 6;
+    public static final int DIV = 7;
+    public static final int WRT = 8;
+    // 超级指令
+    public static final int LITADD = 9;
+    public static final int LITSUB = 10;
+    public static final int LITMUL = 11;
+    public static final int LITDIV = 12;
+    public static final int LODADD = 13;
+    public static final int LODSUB = 14;
+    public static final int LODMUL = 15;
+    public static final int LODDIV = 16;
+    public static final int LODWRT = 17;
+    // 扩展指令
+    public static final int SHL = 18;
+    public static final int SAR = 19;
+    public static final int NEG = 20;
+
+    static {
+        if (Operation.LIT.ordinal() != LIT || Operation.WRT.ordinal() != WRT
+                || Operation.LITADD.ordinal() != LITADD || Operation.LODWRT.ordinal() != LODWRT
+                || Operation.SHL.ordinal() != SHL || Operation.NEG.ordinal() != NEG) {
+            throw new Error("Bytecode opcodes out of sync with Operation");
+        }
+    }
+
+    private Bytecode() {
+    }
+
+    /**
+     * 把指令序列编码成字节码
+     *
+     * @param instructions 指令序列
+     * @return 长度为指令数两倍的数组
+     */
+    public static int[] encode(List<Instruction> instructions) {
+        var code = new int[instructions.size() * 2];
+        int i = 0;
+        for (var instruction : instructions) {
+            code[i++] = instruction.getOpt().ordinal();
+            code[i++] = instruction.getX();
+        }
+        return code;
+    }
+}
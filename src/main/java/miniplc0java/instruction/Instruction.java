@@ -1,5 +1,7 @@
 package miniplc0java.instruction;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
 
 public class Instruction {
@@ -52,8 +54,51 @@ public class Instruction {
         this.x = x;
     }
 
+    /**
+     * @return 展开成基本指令，本身是基本指令时只有它自己
+     */
+    public List<Instruction> expand() {
+        if (opt.isFused()) {
+            return List.of(new Instruction(opt.getFirst(), x), new Instruction(opt.getSecond()));
+        }
+        switch (opt) {
+            case SHL:
+                return List.of(new Instruction(Operation.LIT, 1 << x), new Instruction(Operation.MUL));
+            case SAR:
+                return List.of(new Instruction(Operation.LIT, 1 << x), new Instruction(Operation.DIV));
+            case NEG:
+                return List.of(new Instruction(Operation.LIT, -1), new Instruction(Operation.MUL));
+            default:
+                return List.of(this);
+        }
+    }
+
+    /**
+     * 把指令序列里的超级指令和扩展指令都展开成基本指令
+     *
+     * @param instructions 指令序列
+     * @return 只含基本指令的序列，本来就只有基本指令时直接返回原序列
+     */
+    public static List<Instruction> expandAll(List<Instruction> instructions) {
+        if (instructions.stream().allMatch(instruction -> instruction.opt.isBase())) {
+            return instructions;
+        }
+        var result = new ArrayList<Instruction>(instructions.size() * 2);
+        for (var instruction : instructions) {
+            result.addAll(instruction.expand());
+        }
+        return result;
+    }
+
+    /**
+     * 超级指令和扩展指令输出成展开后的两行基本指令，保证输出只用到基本指令
+     */
     @Override
     public String toString() {
+        if (!this.opt.isBase()) {
+            var expanded = expand();
+            return expanded.get(0) + System.lineSeparator() + expanded.get(1);
+        }
         switch (this.opt) {
             case ADD:
             case DIV:
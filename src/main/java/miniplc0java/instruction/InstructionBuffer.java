@@ -0,0 +1,23 @@
+package miniplc0java.instruction;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 把收到的指令存起来，用于需要看到整个程序的优化和执行引擎
+ */
+public class InstructionBuffer implements InstructionSink {
+    private final ArrayList<Instruction> instructions = new ArrayList<>();
+
+    @Override
+    public void emit(Instruction instruction) {
+        instructions.add(instruction);
+    }
+
+    /**
+     * @return 收到的全部指令
+     */
+    public List<Instruction> getInstructions() {
+        return instructions;
+    }
+}
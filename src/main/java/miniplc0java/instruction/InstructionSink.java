@@ -0,0 +1,14 @@
+package miniplc0java.instruction;
+
+/**
+ * 按顺序接收生成的指令。分析器每分析完一条语句就把它的指令交出去，
+ * 实现可以直接输出、直接执行，或者先存起来
+ */
+public interface InstructionSink {
+    /**
+     * 接收下一条指令，交出之后指令不会再被修改
+     *
+     * @param instruction 指令
+     */
+    void emit(Instruction instruction);
+}
@@ -1,5 +1,64 @@
 package miniplc0java.instruction;
 
 public enum Operation {
-    ILL, LIT, LOD, STO, ADD, SUB, MUL, DIV, WRT
+    ILL, LIT, LOD, STO, ADD, SUB, MUL, DIV, WRT,
+    // 超级指令：把常见的两条指令合成一条，操作数属于第一条。只在虚拟机内部使用，输出时展开成两条基本指令
+    LITADD(LIT, ADD), LITSUB(LIT, SUB), LITMUL(LIT, MUL), LITDIV(LIT, DIV),
+    LODADD(LOD, ADD), LODSUB(LOD, SUB), LODMUL(LOD, MUL), LODDIV(LOD, DIV),
+    LODWRT(LOD, WRT),
+    // 扩展指令，同样只在虚拟机内部使用，输出时展开成基本指令（见 Instruction.expand）：
+    // SHL k 等价于 LIT 2^k; MUL，SAR k 等价于 LIT 2^k; DIV（向零取整，0 <= k <= 30），NEG 等价于 LIT -1; MUL
+    SHL, SAR, NEG;
+
+    private final Operation first;
+    private final Operation second;
+
+    Operation() {
+        this(null, null);
+    }
+
+    Operation(Operation first, Operation second) {
+        this.first = first;
+        this.second = second;
+    }
+
+    /**
+     * @return 是否是标准虚拟机支持的基本指令
+     */
+    public boolean isBase() {
+        return ordinal() <= WRT.ordinal();
+    }
+
+    /**
+     * @return 是否是超级指令
+     */
+    public boolean isFused() {
+        return first != null;
+    }
+
+    /**
+     * @return 超级指令展开后的第一条指令，它带着操作数
+     */
+    public Operation getFirst() {
+        return first;
+    }
+
+    /**
+     * @return 超级指令展开后的第二条指令
+     */
+    public Operation getSecond() {
+        return second;
+    }
+
+    /**
+     * @return first 和 second 合成的超级指令，没有时返回 null
+     */
+    public static Operation fuse(Operation first, Operation second) {
+        for (var opt : values()) {
+            if (opt.first == first && opt.second == second) {
+                return opt;
+            }
+        }
+        return null;
+    }
 }
@@ -0,0 +1,19 @@
+package miniplc0java.instruction;
+
+import java.io.PrintStream;
+
+/**
+ * 收到一条指令就输出一条，格式和 Instruction.toString() 相同，不占额外的内存
+ */
+public class PrintSink implements InstructionSink {
+    private final PrintStream out;
+
+    public PrintSink(PrintStream out) {
+        this.out = out;
+    }
+
+    @Override
+    public void emit(Instruction instruction) {
+        out.println(instruction.toString());
+    }
+}
@@ -0,0 +1,403 @@
+package miniplc0java.optimizer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import miniplc0java.instruction.Instruction;
+import miniplc0java.instruction.Operation;
+
+/**
+ * 删除无用的存储和没有被读过的变量，再把剩下的栈位置重新编号成连续的。
+ * <p>
+ * 程序没有跳转，每条指令执行前的栈深度是确定的，栈上的每个位置都可以当成一个变量来分析：
+ * <ul>
+ * <li>死存储：STO x 之后，x 在被读之前又被写了，或者再也没被访问过。
+ * 连同算出这个值的指令一起删掉。</li>
+ * <li>无用变量：一直留在栈上直到程序结束、但从来没有被 LOD 过的位置。
+ * 把它的初始化和所有对它的 STO 删掉，更高位置的偏移都减一。</li>
+ * </ul>
+ * 被删掉的计算必须是纯的：只能有 LIT、LOD、算术运算，除法的除数必须是非 0 的常数，保证删掉之后不会少报运行时错误。
+ * 删除之后可能出现新的死存储和无用变量，所以重复执行直到没有变化。
+ * 程序本身不合法（出栈下溢、访问不存在的位置、含有 ILL）时不做任何修改
+ */
+public class DeadCodeEliminator {
+    private static final String DEAD_STORE = "dead-store";
+    private static final String UNUSED_VARIABLE = "unused-variable";
+
+    /** 每种删除删掉的指令数 */
+    private final LinkedHashMap<String, Integer> removed = new LinkedHashMap<>();
+
+    public DeadCodeEliminator() {
+        removed.put(DEAD_STORE, 0);
+        removed.put(UNUSED_VARIABLE, 0);
+    }
+
+    /**
+     * @param instructions 指令序列，不会被修改
+     * @return 优化后的指令序列
+     */
+    public List<Instruction> eliminate(List<Instruction> instructions) {
+        if (depths(instructions) == null) {
+            return instructions;
+        }
+        var current = instructions;
+        while (true) {
+            var next = removeUnusedVariables(removeDeadStores(current));
+            if (next.size() == current.size()) {
+                return next;
+            }
+            current = next;
+        }
+    }
+
+    /**
+     * @return 每种删除删掉的指令数
+     */
+    public Map<String, Integer> getRemovedCounts() {
+        return removed;
+    }
+
+    /**
+     * 从后往前扫描，记录每个位置接下来是先被读还是先被写
+     */
+    private List<Instruction> removeDeadStores(List<Instruction> instructions) {
+        int[] before = depths(instructions);
+        int n = instructions.size();
+        var keep = new boolean[n];
+        Arrays.fill(keep, true);
+        // 每个位置之后的第一次访问是不是读；没有访问过的位置和先被写的位置一样，里面的值不会被用到
+        var read = new boolean[maxDepth(before) + 1];
+        int count = 0;
+        for (int i = n - 1; i >= 0; i--) {
+            var instruction = instructions.get(i);
+            var opt = instruction.getOpt();
+            int d = before[i];
+            int x = instruction.getX();
+            if (opt == Operation.STO) {
+                if (!read[x]) {
+                    int start = valueStart(before, i);
+                    if (isPure(instructions, start, i - 1)) {
+                        // 值的计算和存储一起删掉，中间的读也不再算数
+                        Arrays.fill(keep, start, i + 1, false);
+                        count += i + 1 - start;
+                        i = start;
+                        continue;
+                    }
+                }
+                read[x] = false;
+                read[d - 1] = true;
+                continue;
+            }
+            // 先处理写，再处理读：对更早的指令来说，一条先读后写的指令意味着这个位置会被读
+            if (pushes(opt)) {
+                read[d - pops(opt)] = false;
+            }
+            for (int k = 0; k < pops(opt); k++) {
+                read[d - 1 - k] = true;
+            }
+            if (readsOperand(opt)) {
+                read[x] = true;
+            }
+        }
+        removed.merge(DEAD_STORE, count, Integer::sum);
+        return count == 0 ? instructions : filter(instructions, keep);
+    }
+
+    /**
+     * 找出留到程序结束、但没被 LOD 过的位置，删掉它们
+     */
+    private List<Instruction> removeUnusedVariables(List<Instruction> instructions) {
+        int[] before = depths(instructions);
+        int n = instructions.size();
+        int finalDepth = n == 0 ? 0 : before[n - 1] + effect(instructions.get(n - 1).getOpt());
+        if (finalDepth == 0) {
+            return instructions;
+        }
+        // created[x]：位置 x 最后一次被压栈的指令，之后它一直在栈上
+        var created = new int[finalDepth];
+        for (int i = 0; i < n; i++) {
+            if (before[i] < finalDepth) {
+                created[before[i]] = i;
+            }
+        }
+        var isRead = new boolean[finalDepth];
+        // 初始化表达式的最后一条指令，也就是最后一次原地修改这个位置的指令
+        var initEnd = created.clone();
+        var stores = new ArrayList<ArrayList<Integer>>(finalDepth);
+        for (int x = 0; x < finalDepth; x++) {
+            stores.add(new ArrayList<>());
+        }
+        for (int i = 0; i < n; i++) {
+            var instruction = instructions.get(i);
+            var opt = instruction.getOpt();
+            int x = instruction.getX();
+            if (readsOperand(opt) && x < finalDepth && i > created[x]) {
+                isRead[x] = true;
+            }
+            if (opt == Operation.STO && x < finalDepth && i > created[x]) {
+                stores.get(x).add(i);
+            }
+            // 原地修改的位置：二元运算的左操作数，或者一元运算的操作数
+            int target = before[i] - pops(opt);
+            if (pops(opt) > 0 && pushes(opt) && target < finalDepth && i > created[target]) {
+                initEnd[target] = i;
+            }
+        }
+
+        var keep = new boolean[n];
+        Arrays.fill(keep, true);
+        var removedSlots = new boolean[finalDepth];
+        int count = 0;
+        for (int x = 0; x < finalDepth; x++) {
+            if (isRead[x] || !isPure(instructions, created[x], initEnd[x])) {
+                continue;
+            }
+            var storeRanges = new ArrayList<int[]>();
+            boolean removable = true;
+            for (int store : stores.get(x)) {
+                if (store < initEnd[x]) {
+                    removable = false;
+                    break;
+                }
+                int start = valueStart(before, store);
+                if (!isPure(instructions, start, store - 1)) {
+                    removable = false;
+                    break;
+                }
+                storeRanges.add(new int[] { start, store });
+            }
+            if (!removable) {
+                continue;
+            }
+            removedSlots[x] = true;
+            Arrays.fill(keep, created[x], initEnd[x] + 1, false);
+            count += initEnd[x] + 1 - created[x];
+            for (var range : storeRanges) {
+                Arrays.fill(keep, range[0], range[1] + 1, false);
+                count += range[1] + 1 - range[0];
+            }
+        }
+        if (count == 0) {
+            return instructions;
+        }
+        removed.merge(UNUSED_VARIABLE, count, Integer::sum);
+
+        // 重新编号：位置 y 减去在它下面、并且已经被创建的被删位置数
+        var shift = new Fenwick(finalDepth);
+        var result = new ArrayList<Instruction>(n - count);
+        for (int i = 0; i < n; i++) {
+            var instruction = instructions.get(i);
+            if (before[i] < finalDepth && created[before[i]] == i && removedSlots[before[i]]) {
+                shift.add(before[i]);
+            }
+            if (!keep[i]) {
+                continue;
+            }
+            var opt = instruction.getOpt();
+            if (opt == Operation.STO || readsOperand(opt)) {
+                int y = instruction.getX();
+                int below = shift.countBelow(Math.min(y, finalDepth));
+                if (below > 0) {
+                    instruction = new Instruction(opt, y - below);
+                }
+            }
+            result.add(instruction);
+        }
+        return result;
+    }
+
+    /**
+     * 树状数组，统计已经删掉的位置里比 y 小的有几个
+     */
+    private static final class Fenwick {
+        private final int[] tree;
+
+        Fenwick(int size) {
+            tree = new int[size + 1];
+        }
+
+        void add(int index) {
+            for (int i = index + 1; i < tree.length; i += i & -i) {
+                tree[i]++;
+            }
+        }
+
+        /**
+         * @return [0, end) 里被加过的下标数
+         */
+        int countBelow(int end) {
+            int sum = 0;
+            for (int i = end; i > 0; i -= i & -i) {
+                sum += tree[i];
+            }
+            return sum;
+        }
+    }
+
+    private static List<Instruction> filter(List<Instruction> instructions, boolean[] keep) {
+        var result = new ArrayList<Instruction>(instructions.size());
+        for (int i = 0; i < instructions.size(); i++) {
+            if (keep[i]) {
+                result.add(instructions.get(i));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 第 i 条指令消耗的栈顶值是从哪条指令开始计算的：往前找第一条执行前栈深度比 i 少一的指令
+     */
+    private static int valueStart(int[] before, int i) {
+        int depth = before[i] - 1;
+        int j = i - 1;
+        while (before[j] != depth) {
+            j--;
+        }
+        return j;
+    }
+
+    /**
+     * [start, end] 里的指令是否都可以删掉而不影响输出和运行时错误
+     */
+    private static boolean isPure(List<Instruction> instructions, int start, int end) {
+        for (int k = start; k <= end; k++) {
+            var instruction = instructions.get(k);
+            switch (instruction.getOpt()) {
+                case LIT:
+                case LOD:
+                case ADD:
+                case SUB:
+                case MUL:
+                case NEG:
+                case SHL:
+                case SAR:
+                case LITADD:
+                case LITSUB:
+                case LITMUL:
+                case LODADD:
+                case LODSUB:
+                case LODMUL:
+                    break;
+                case LITDIV:
+                    if (instruction.getX() == 0) {
+                        return false;
+                    }
+                    break;
+                case DIV: {
+                    // 除数是紧挨着的非 0 常数才不会出错
+                    var divisor = k > start ? instructions.get(k - 1) : null;
+                    if (divisor == null || divisor.getOpt() != Operation.LIT || divisor.getX() == 0) {
+                        return false;
+                    }
+                    break;
+                }
+                default:
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 计算每条指令执行前的栈深度
+     *
+     * @return 程序不合法时返回 null
+     */
+    private static int[] depths(List<Instruction> instructions) {
+        var before = new int[instructions.size()];
+        int depth = 0;
+        int i = 0;
+        for (var instruction : instructions) {
+            before[i++] = depth;
+            var opt = instruction.getOpt();
+            if (opt == Operation.ILL || depth < pops(opt)) {
+                return null;
+            }
+            int x = instruction.getX();
+            if (readsOperand(opt) && (x < 0 || x >= depth)) {
+                return null;
+            }
+            if (opt == Operation.STO && (x < 0 || x >= depth - 1)) {
+                return null;
+            }
+            depth += effect(opt);
+        }
+        return before;
+    }
+
+    private static int maxDepth(int[] before) {
+        int max = 0;
+        for (int depth : before) {
+            max = Math.max(max, depth);
+        }
+        return max;
+    }
+
+    /**
+     * @return 从栈顶读走的值的个数，原地修改栈顶的指令也算读了一个
+     */
+    private static int pops(Operation opt) {
+        switch (opt) {
+            case ADD:
+            case SUB:
+            case MUL:
+            case DIV:
+                return 2;
+            case STO:
+            case WRT:
+            case NEG:
+            case SHL:
+            case SAR:
+            case LITADD:
+            case LITSUB:
+            case LITMUL:
+            case LITDIV:
+            case LODADD:
+            case LODSUB:
+            case LODMUL:
+            case LODDIV:
+                return 1;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * @return 是否往栈顶写一个值（压栈或者写回运算结果）
+     */
+    private static boolean pushes(Operation opt) {
+        switch (opt) {
+            case STO:
+            case WRT:
+            case LODWRT:
+            case ILL:
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * @return 是否按操作数读取栈上的位置
+     */
+    private static boolean readsOperand(Operation opt) {
+        switch (opt) {
+            case LOD:
+            case LODADD:
+            case LODSUB:
+            case LODMUL:
+            case LODDIV:
+            case LODWRT:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static int effect(Operation opt) {
+        return (pushes(opt) ? 1 : 0) - pops(opt);
+    }
+}
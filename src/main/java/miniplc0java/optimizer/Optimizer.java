@@ -0,0 +1,87 @@
+package miniplc0java.optimizer;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import miniplc0java.instruction.Instruction;
+
+/**
+ * 窥孔优化器。
+ * 逐条把指令放进输出，每放一条就用规则表检查输出末尾的窗口，匹配就原地替换，再继续检查新的末尾；
+ * 这样一遍就能处理大部分连锁的改写，最后重复整个过程直到没有变化为止。
+ * 每条规则都让指令变少，所以一定会停下来
+ */
+public class Optimizer {
+    private final List<Rule> rules;
+    /** 每条规则删掉的指令数 */
+    private final LinkedHashMap<String, Integer> removed = new LinkedHashMap<>();
+
+    public Optimizer(List<Rule> rules) {
+        this.rules = rules;
+        for (var rule : rules) {
+            removed.put(rule.getName(), 0);
+        }
+    }
+
+    public Optimizer() {
+        this(Rules.PEEPHOLE);
+    }
+
+    /**
+     * @param instructions 指令序列，不会被修改
+     * @return 优化后的指令序列
+     */
+    public List<Instruction> optimize(List<Instruction> instructions) {
+        List<Instruction> current = instructions;
+        while (true) {
+            var next = pass(current);
+            if (next.size() == current.size()) {
+                return next;
+            }
+            current = next;
+        }
+    }
+
+    private List<Instruction> pass(List<Instruction> instructions) {
+        var out = new ArrayList<Instruction>(instructions.size());
+        for (var instruction : instructions) {
+            out.add(instruction);
+            while (rewriteTail(out)) {
+            }
+        }
+        return out;
+    }
+
+    /**
+     * 尝试改写输出末尾
+     *
+     * @return 是否有规则匹配
+     */
+    private boolean rewriteTail(ArrayList<Instruction> out) {
+        int size = out.size();
+        for (var rule : rules) {
+            int window = rule.getWindow();
+            if (window > size) {
+                continue;
+            }
+            var tail = out.subList(size - window, size);
+            var replacement = rule.rewrite(tail);
+            if (replacement != null) {
+                tail.clear();
+                out.addAll(replacement);
+                removed.merge(rule.getName(), window - replacement.size(), Integer::sum);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return 每条规则删掉的指令数，按规则表的顺序
+     */
+    public Map<String, Integer> getRemovedCounts() {
+        return removed;
+    }
+}
@@ -0,0 +1,117 @@
+package miniplc0java.optimizer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import miniplc0java.instruction.Instruction;
+import miniplc0java.instruction.Operation;
+
+/**
+ * 编译时执行整个程序。miniplc0 的程序没有输入，输出在编译时就是确定的：
+ * 如果程序在步数限制内正常结束，就把它换成一串 LIT k; WRT，直接输出同样的结果。
+ * 运行时出错（比如除以 0）或者超出步数限制时不做替换，保证错误照样在运行时报告
+ */
+public class Precomputer {
+    /** 默认的步数限制 */
+    public static final long DEFAULT_BUDGET = 10_000_000;
+
+    private final long budget;
+
+    public Precomputer(long budget) {
+        this.budget = budget;
+    }
+
+    public Precomputer() {
+        this(DEFAULT_BUDGET);
+    }
+
+    /**
+     * @param instructions 指令序列，可以包含超级指令和扩展指令
+     * @return 只输出结果的指令序列；程序出错或者超出步数限制时返回 null
+     */
+    public List<Instruction> precompute(List<Instruction> instructions) {
+        var output = evaluate(Instruction.expandAll(instructions));
+        if (output == null) {
+            return null;
+        }
+        var result = new ArrayList<Instruction>(output.length * 2);
+        for (int value : output) {
+            result.add(new Instruction(Operation.LIT, value));
+            result.add(new Instruction(Operation.WRT));
+        }
+        return result;
+    }
+
+    /**
+     * 按虚拟机的语义执行基本指令
+     *
+     * @return 依次输出的值；出错或者超出步数限制时返回 null
+     */
+    private int[] evaluate(List<Instruction> instructions) {
+        if (instructions.size() > budget) {
+            return null;
+        }
+        var stack = new int[256];
+        int sp = 0;
+        var output = new int[16];
+        int count = 0;
+        for (var instruction : instructions) {
+            int x = instruction.getX();
+            switch (instruction.getOpt()) {
+                case LIT:
+                    if (sp == stack.length) {
+                        stack = Arrays.copyOf(stack, sp * 2);
+                    }
+                    stack[sp++] = x;
+                    break;
+                case LOD:
+                    if (x < 0 || x >= sp) {
+                        return null;
+                    }
+                    if (sp == stack.length) {
+                        stack = Arrays.copyOf(stack, sp * 2);
+                    }
+                    stack[sp] = stack[x];
+                    sp++;
+                    break;
+                case STO:
+                    if (sp < 1 || x < 0 || x >= sp - 1) {
+                        return null;
+                    }
+                    sp--;
+                    stack[x] = stack[sp];
+                    break;
+                case ADD:
+                case SUB:
+                case MUL:
+                case DIV: {
+                    if (sp < 2) {
+                        return null;
+                    }
+                    int rhs = stack[--sp];
+                    int lhs = stack[sp - 1];
+                    var op = instruction.getOpt();
+                    if (op == Operation.DIV && rhs == 0) {
+                        return null;
+                    }
+                    stack[sp - 1] = Rules.fold(op, lhs, rhs);
+                    break;
+                }
+                case WRT:
+                    if (sp < 1) {
+                        return null;
+                    }
+                    if (count == output.length) {
+                        output = Arrays.copyOf(output, count * 2);
+                    }
+                    output[count++] = stack[--sp];
+                    break;
+                default:
+                    // ILL
+                    return null;
+            }
+        }
+        return Arrays.copyOf(output, count);
+    }
+}
@@ -0,0 +1,49 @@
+package miniplc0java.optimizer;
+
+import java.util.List;
+
+import miniplc0java.instruction.Instruction;
+
+/**
+ * 一条窥孔优化规则：匹配连续的 window 条指令，换成更少的指令
+ */
+public final class Rule {
+    /**
+     * 改写函数
+     */
+    @FunctionalInterface
+    public interface Rewriter {
+        /**
+         * @param window 连续的 window 条指令，不要修改
+         * @return 替换后的指令，条数必须比 window 少；不匹配时返回 null
+         */
+        List<Instruction> rewrite(List<Instruction> window);
+    }
+
+    private final String name;
+    private final int window;
+    private final Rewriter rewriter;
+
+    public Rule(String name, int window, Rewriter rewriter) {
+        this.name = name;
+        this.window = window;
+        this.rewriter = rewriter;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getWindow() {
+        return window;
+    }
+
+    public List<Instruction> rewrite(List<Instruction> window) {
+        return rewriter.rewrite(window);
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,175 @@
+package miniplc0java.optimizer;
+
+import java.util.List;
+
+import miniplc0java.instruction.Instruction;
+import miniplc0java.instruction.Operation;
+
+/**
+ * 窥孔优化的规则表。
+ * 规则假定 LOD/STO 的偏移都在栈内，Analyser 生成的代码总是满足这一点
+ */
+public final class Rules {
+    private Rules() {
+    }
+
+    /**
+     * -O1 使用的规则
+     */
+    public static final List<Rule> PEEPHOLE = List.of(
+            // LOD x; STO x 把 x 的值写回 x
+            new Rule("redundant-store", 2, w -> {
+                if (is(w.get(0), Operation.LOD) && is(w.get(1), Operation.STO)
+                        && w.get(0).getX().equals(w.get(1).getX())) {
+                    return List.of();
+                }
+                return null;
+            }),
+            // LIT a; LIT b; op => LIT (a op b)，除以 0 留到运行时报错
+            new Rule("constant-fold", 3, w -> {
+                if (is(w.get(0), Operation.LIT) && is(w.get(1), Operation.LIT) && isArithmetic(w.get(2))) {
+                    var op = w.get(2).getOpt();
+                    int b = w.get(1).getX();
+                    if (op == Operation.DIV && b == 0) {
+                        return null;
+                    }
+                    return List.of(new Instruction(Operation.LIT, fold(op, w.get(0).getX(), b)));
+                }
+                return null;
+            }),
+            // x + 0、x - 0、x * 1、x / 1 都等于 x
+            new Rule("identity", 2, w -> {
+                if (!is(w.get(0), Operation.LIT)) {
+                    return null;
+                }
+                int value = w.get(0).getX();
+                var op = w.get(1).getOpt();
+                if ((value == 0 && (op == Operation.ADD || op == Operation.SUB))
+                        || (value == 1 && (op == Operation.MUL || op == Operation.DIV))) {
+                    return List.of();
+                }
+                return null;
+            }),
+            // LIT a; ADD/SUB; LIT b; ADD/SUB => LIT c; ADD，整数加法在溢出回绕时依然满足结合律
+            new Rule("combine-additive", 4, w -> {
+                if (is(w.get(0), Operation.LIT) && isAdditive(w.get(1))
+                        && is(w.get(2), Operation.LIT) && isAdditive(w.get(3))) {
+                    int a = is(w.get(1), Operation.ADD) ? w.get(0).getX() : -w.get(0).getX();
+                    int b = is(w.get(3), Operation.ADD) ? w.get(2).getX() : -w.get(2).getX();
+                    return List.of(new Instruction(Operation.LIT, a + b), new Instruction(Operation.ADD));
+                }
+                return null;
+            }),
+            // LIT a; MUL; LIT b; MUL => LIT (a * b); MUL
+            new Rule("combine-multiplicative", 4, w -> {
+                if (is(w.get(0), Operation.LIT) && is(w.get(1), Operation.MUL)
+                        && is(w.get(2), Operation.LIT) && is(w.get(3), Operation.MUL)) {
+                    return List.of(new Instruction(Operation.LIT, w.get(0).getX() * w.get(2).getX()),
+                            new Instruction(Operation.MUL));
+                }
+                return null;
+            }),
+            // LIT a; NEG => LIT -a
+            new Rule("negate-fold", 2, w -> {
+                if (is(w.get(0), Operation.LIT) && is(w.get(1), Operation.NEG)) {
+                    return List.of(new Instruction(Operation.LIT, -w.get(0).getX()));
+                }
+                return null;
+            }),
+            // --x == x
+            new Rule("double-negate", 2, w -> {
+                if (is(w.get(0), Operation.NEG) && is(w.get(1), Operation.NEG)) {
+                    return List.of();
+                }
+                return null;
+            }),
+            // x + -y == x - y，x - -y == x + y
+            new Rule("negate-additive", 2, w -> {
+                if (is(w.get(0), Operation.NEG) && isAdditive(w.get(1))) {
+                    return List.of(new Instruction(is(w.get(1), Operation.ADD) ? Operation.SUB : Operation.ADD));
+                }
+                return null;
+            }));
+
+    /**
+     * -O2 使用的强度削减规则：乘除 2 的幂换成移位，乘除 -1 换成取负。
+     * 移位只用在 1 <= k <= 30，2^31 不是正数
+     */
+    public static final List<Rule> STRENGTH_REDUCTION = List.of(
+            // x * 2^k == x << k，溢出时同样回绕
+            new Rule("multiply-to-shift", 2, w -> {
+                int k = powerOfTwo(w.get(0));
+                if (k > 0 && is(w.get(1), Operation.MUL)) {
+                    return List.of(new Instruction(Operation.SHL, k));
+                }
+                return null;
+            }),
+            // x / 2^k，SAR 先给负数加上偏移，保证和除法一样向零取整
+            new Rule("divide-to-shift", 2, w -> {
+                int k = powerOfTwo(w.get(0));
+                if (k > 0 && is(w.get(1), Operation.DIV)) {
+                    return List.of(new Instruction(Operation.SAR, k));
+                }
+                return null;
+            }),
+            // x * -1 和 x / -1 都等于 -x，包括 x 是最小值时的回绕
+            new Rule("negate", 2, w -> {
+                if (is(w.get(0), Operation.LIT) && w.get(0).getX() == -1
+                        && (is(w.get(1), Operation.MUL) || is(w.get(1), Operation.DIV))) {
+                    return List.of(new Instruction(Operation.NEG));
+                }
+                return null;
+            }));
+
+    /**
+     * @return 如果是 LIT 2^k（1 <= k <= 30）返回 k，否则返回 0
+     */
+    private static int powerOfTwo(Instruction instruction) {
+        if (!is(instruction, Operation.LIT)) {
+            return 0;
+        }
+        int value = instruction.getX();
+        if (value <= 1 || Integer.bitCount(value) != 1) {
+            return 0;
+        }
+        return Integer.numberOfTrailingZeros(value);
+    }
+
+    static boolean is(Instruction instruction, Operation opt) {
+        return instruction.getOpt() == opt;
+    }
+
+    private static boolean isAdditive(Instruction instruction) {
+        return is(instruction, Operation.ADD) || is(instruction, Operation.SUB);
+    }
+
+    private static boolean isArithmetic(Instruction instruction) {
+        switch (instruction.getOpt()) {
+            case ADD:
+            case SUB:
+            case MUL:
+            case DIV:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * 按虚拟机的语义计算二元运算
+     */
+    static int fold(Operation op, int lhs, int rhs) {
+        switch (op) {
+            case ADD:
+                return lhs + rhs;
+            case SUB:
+                return lhs - rhs;
+            case MUL:
+                return lhs * rhs;
+            case DIV:
+                return lhs / rhs;
+            default:
+                throw new IllegalArgumentException(op.toString());
+        }
+    }
+}
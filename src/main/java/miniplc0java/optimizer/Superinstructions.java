@@ -0,0 +1,96 @@
+package miniplc0java.optimizer;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import miniplc0java.instruction.Instruction;
+import miniplc0java.instruction.Operation;
+
+/**
+ * 把相邻的两条指令合成一条超级指令，减少虚拟机的分派次数。
+ * 先统计程序里每种可以合成的相邻指令对出现了多少次，按次数从多到少选出最多 maxKinds 种，
+ * 再从前往后把选中的指令对换成对应的超级指令
+ */
+public class Superinstructions {
+    private final int maxKinds;
+    /** 每种超级指令合成的次数，按选中的顺序 */
+    private final LinkedHashMap<Operation, Integer> fused = new LinkedHashMap<>();
+
+    /**
+     * @param maxKinds 最多使用多少种超级指令
+     */
+    public Superinstructions(int maxKinds) {
+        this.maxKinds = maxKinds;
+    }
+
+    public Superinstructions() {
+        this(Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param instructions 指令序列，不会被修改
+     * @return 合成后的指令序列
+     */
+    public List<Instruction> fuse(List<Instruction> instructions) {
+        var selected = select(countPairs(instructions));
+        var result = new ArrayList<Instruction>(instructions.size());
+        int i = 0;
+        while (i < instructions.size()) {
+            var instruction = instructions.get(i);
+            if (i + 1 < instructions.size()) {
+                var opt = Operation.fuse(instruction.getOpt(), instructions.get(i + 1).getOpt());
+                if (opt != null && selected.contains(opt)) {
+                    result.add(new Instruction(opt, instruction.getX()));
+                    fused.merge(opt, 1, Integer::sum);
+                    i += 2;
+                    continue;
+                }
+            }
+            result.add(instruction);
+            i++;
+        }
+        return result;
+    }
+
+    /**
+     * @return 每种可以合成的相邻指令对出现的次数
+     */
+    static EnumMap<Operation, Integer> countPairs(List<Instruction> instructions) {
+        var counts = new EnumMap<Operation, Integer>(Operation.class);
+        for (int i = 0; i + 1 < instructions.size(); i++) {
+            var opt = Operation.fuse(instructions.get(i).getOpt(), instructions.get(i + 1).getOpt());
+            if (opt != null) {
+                counts.merge(opt, 1, Integer::sum);
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * 按出现次数从多到少选出要用的超级指令
+     */
+    private EnumSet<Operation> select(EnumMap<Operation, Integer> counts) {
+        var kinds = new ArrayList<>(counts.keySet());
+        kinds.sort((a, b) -> counts.get(b) - counts.get(a));
+        var selected = EnumSet.noneOf(Operation.class);
+        for (var opt : kinds) {
+            if (selected.size() == maxKinds) {
+                break;
+            }
+            selected.add(opt);
+            fused.putIfAbsent(opt, 0);
+        }
+        return selected;
+    }
+
+    /**
+     * @return 每种超级指令合成的次数
+     */
+    public Map<Operation, Integer> getFusedCounts() {
+        return fused;
+    }
+}
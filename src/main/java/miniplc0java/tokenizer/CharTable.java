@@ -0,0 +1,86 @@
+package miniplc0java.tokenizer;
+
+/**
+ * 字符分类表。对 ASCII 字符，结果和 Character.isWhitespace/isDigit/isAlphabetic 完全一致；
+ * 源文件按字节读入，非 ASCII 的字节不属于任何一类，词法分析会在它的位置报 InvalidInput
+ */
+final class CharTable {
+    static final byte SPACE = 1;
+    static final byte DIGIT = 2;
+    static final byte ALPHA = 4;
+
+    private static final byte[] TABLE = new byte[128];
+
+    static {
+        for (char c = 0; c < 128; c++) {
+            byte flags = 0;
+            if (Character.isWhitespace(c)) {
+                flags |= SPACE;
+            }
+            if (Character.isDigit(c)) {
+                flags |= DIGIT;
+            }
+            if (Character.isAlphabetic(c)) {
+                flags |= ALPHA;
+            }
+            TABLE[c] = flags;
+        }
+    }
+
+    // 按 8 字节一组判断用到的常量
+    private static final long ONES = 0x0101010101010101L;
+    private static final long HIGHS = 0x8080808080808080L;
+    private static final long SPACES = ' ' * ONES;
+
+    private CharTable() {
+    }
+
+    static boolean isSpace(char c) {
+        return c < 128 && (TABLE[c] & SPACE) != 0;
+    }
+
+    static boolean isDigit(char c) {
+        return c < 128 && (TABLE[c] & DIGIT) != 0;
+    }
+
+    static boolean isAlpha(char c) {
+        return c < 128 && (TABLE[c] & ALPHA) != 0;
+    }
+
+    static boolean isIdentPart(char c) {
+        return c < 128 && (TABLE[c] & (ALPHA | DIGIT)) != 0;
+    }
+
+    /**
+     * @param word 8 个字节
+     * @return 是否全是空格
+     */
+    static boolean allSpaces(long word) {
+        return word == SPACES;
+    }
+
+    /**
+     * @param word 8 个字节
+     * @return 是否全是 ASCII 字母或数字
+     */
+    static boolean allIdentParts(long word) {
+        if ((word & HIGHS) != 0) {
+            // 有非 ASCII 字节，交给逐字符的判断，在那个字节处停下
+            return false;
+        }
+        long matched = inRange(word, 'a', 'z') | inRange(word, 'A', 'Z') | inRange(word, '0', '9');
+        return matched == HIGHS;
+    }
+
+    /**
+     * 对 8 个 ASCII 字节同时做范围判断。每个字节加上偏移后不会向高位进位，
+     * 所以每个字节的最高位就是这个字节的判断结果
+     *
+     * @return 在 [lo, hi] 范围内的字节最高位为 1，其余为 0
+     */
+    private static long inRange(long word, char lo, char hi) {
+        long geLo = word + (0x80 - lo) * ONES;
+        long gtHi = word + (0x7f - hi) * ONES;
+        return geLo & ~gtHi & HIGHS;
+    }
+}
@@ -0,0 +1,120 @@
+package miniplc0java.tokenizer;
+
+import java.util.Arrays;
+
+/**
+ * 标识符表，把名字相同的标识符映射到同一个从 0 开始的连续编号。
+ * 用开放寻址的哈希表查找；从源文件里读标识符时直接拿缓冲区里的字符计算哈希、逐个比较，
+ * 只有第一次出现的名字才会创建字符串
+ */
+public class IdentifierTable {
+    /** 编号对应的名字 */
+    private String[] names = new String[64];
+    private int[] hashes = new int[64];
+    private int size = 0;
+
+    /** 哈希表的槽，保存编号 + 1，0 表示空槽；容量是 2 的幂 */
+    private int[] slots = new int[128];
+
+    /**
+     * @return 名字的编号，第一次出现时分配新的编号
+     */
+    public int intern(String name) {
+        int hash = name.hashCode();
+        int mask = slots.length - 1;
+        for (int i = mix(hash) & mask;; i = (i + 1) & mask) {
+            int id = slots[i] - 1;
+            if (id < 0) {
+                return add(name, hash, i);
+            }
+            if (hashes[id] == hash && names[id].equals(name)) {
+                return id;
+            }
+        }
+    }
+
+    /**
+     * 查找 it 最近标记的字符组成的标识符，哈希和 String.hashCode() 相同
+     *
+     * @return 名字的编号，第一次出现时分配新的编号
+     */
+    int intern(StringIter it) {
+        int length = it.markedLength();
+        int hash = 0;
+        for (int k = 0; k < length; k++) {
+            hash = 31 * hash + it.markedChar(k);
+        }
+        int mask = slots.length - 1;
+        for (int i = mix(hash) & mask;; i = (i + 1) & mask) {
+            int id = slots[i] - 1;
+            if (id < 0) {
+                return add(it.markedString(), hash, i);
+            }
+            if (hashes[id] == hash && matches(names[id], it, length)) {
+                return id;
+            }
+        }
+    }
+
+    /**
+     * @return 编号对应的名字
+     */
+    public String getName(int id) {
+        return names[id];
+    }
+
+    /**
+     * @return 不同的名字的个数，编号都小于它
+     */
+    public int size() {
+        return size;
+    }
+
+    private static boolean matches(String name, StringIter it, int length) {
+        if (name.length() != length) {
+            return false;
+        }
+        for (int k = 0; k < length; k++) {
+            if (name.charAt(k) != it.markedChar(k)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int add(String name, int hash, int slot) {
+        if (size == names.length) {
+            names = Arrays.copyOf(names, size * 2);
+            hashes = Arrays.copyOf(hashes, size * 2);
+        }
+        names[size] = name;
+        hashes[size] = hash;
+        slots[slot] = size + 1;
+        int id = size++;
+        // 装载因子超过 1/2 时扩容
+        if (size * 2 > slots.length) {
+            rehash();
+        }
+        return id;
+    }
+
+    private void rehash() {
+        slots = new int[slots.length * 2];
+        int mask = slots.length - 1;
+        for (int id = 0; id < size; id++) {
+            int i = mix(hashes[id]) & mask;
+            while (slots[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            slots[i] = id + 1;
+        }
+    }
+
+    /**
+     * String.hashCode() 的低位分布不均匀，打散一下再取槽
+     */
+    private static int mix(int hash) {
+        hash *= 0x9e3779b9;
+        return hash ^ (hash >>> 16);
+    }
+}
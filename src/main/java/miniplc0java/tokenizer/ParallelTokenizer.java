@@ -0,0 +1,113 @@
+package miniplc0java.tokenizer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import miniplc0java.error.TokenizeError;
+import miniplc0java.util.LineIndex;
+
+/**
+ * 并行的词法分析。
+ * miniplc0 没有跨行的 token 也没有注释，所以源文件可以在空白字符处切开，每一段单独分析，
+ * 再按顺序拼接起来，结果和整个文件一起分析完全一样
+ */
+public final class ParallelTokenizer {
+    /** 每一段至少这么大，太小的输入直接顺序分析 */
+    static final int MIN_CHUNK_SIZE = 64 * 1024;
+
+    private ParallelTokenizer() {
+    }
+
+    /**
+     * 把 source 切成最多 jobs 段并行分析
+     *
+     * @param source 整个源文件
+     * @param jobs   并行的线程数
+     * @return 分析结果，偏移和位置都是相对整个源文件的
+     */
+    public static TokenBuffer tokenize(ByteBuffer source, int jobs) {
+        var bounds = split(source, jobs);
+        if (bounds.size() <= 2) {
+            return TokenBuffer.tokenize(new Tokenizer(new StringIter(source)));
+        }
+
+        var tasks = new ArrayList<ForkJoinTask<TokenBuffer>>();
+        var pool = new ForkJoinPool(jobs);
+        try {
+            for (int i = 0; i + 1 < bounds.size(); i++) {
+                var chunk = source.slice(bounds.get(i), bounds.get(i + 1) - bounds.get(i));
+                tasks.add(pool.submit(() -> TokenBuffer.tokenize(new Tokenizer(new StringIter(chunk)))));
+            }
+            return merge(bounds, tasks);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * 按顺序拼接每一段的结果，遇到第一个错误就停下，和顺序分析的行为一致
+     */
+    private static TokenBuffer merge(ArrayList<Integer> bounds, ArrayList<ForkJoinTask<TokenBuffer>> tasks) {
+        var lines = new LineIndex();
+        var result = new TokenBuffer(lines, new IdentifierTable());
+        for (int i = 0; i < tasks.size(); i++) {
+            var chunk = tasks.get(i).join();
+            int base = bounds.get(i);
+            var chunkLines = chunk.getLineIndex();
+            // 每一段的第 0 行要么接在上一段的行尾，要么已经被上一段结尾的 \n 记录过了
+            for (int row = 1; row < chunkLines.getLineCount(); row++) {
+                lines.addLineStart(base + chunkLines.getLineStart(row));
+            }
+            boolean last = i + 1 == tasks.size();
+            result.append(chunk, base, last);
+
+            var error = chunk.getError();
+            if (error != null) {
+                int offset = base + chunkLines.offsetOf(error.getPos());
+                result.setError(new TokenizeError(error.getErr(), lines.posOf(offset)));
+                break;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 计算切分点：从每个等分点开始向后找，优先在 \n 后面切开，找不到就在任意空白字符后面切开
+     *
+     * @return 从 0 开始到 source.limit() 结束的切分点
+     */
+    static ArrayList<Integer> split(ByteBuffer source, int jobs) {
+        int size = source.limit();
+        var bounds = new ArrayList<Integer>();
+        bounds.add(0);
+        int chunks = Math.min(jobs, size / MIN_CHUNK_SIZE);
+        for (int i = 1; i < chunks; i++) {
+            int target = Math.max((int) ((long) size * i / chunks), bounds.get(bounds.size() - 1));
+            int next = (int) ((long) size * (i + 1) / chunks);
+            int bound = findBoundary(source, target, next, true);
+            if (bound < 0) {
+                bound = findBoundary(source, target, next, false);
+            }
+            if (bound > bounds.get(bounds.size() - 1) && bound < size) {
+                bounds.add(bound);
+            }
+        }
+        bounds.add(size);
+        return bounds;
+    }
+
+    /**
+     * @return [from, to) 里第一个 \n（或者空白字符）后面的位置，找不到则返回 -1
+     */
+    private static int findBoundary(ByteBuffer source, int from, int to, boolean newlineOnly) {
+        for (int i = from; i < to; i++) {
+            char c = (char) (source.get(i) & 0xff);
+            if (newlineOnly ? c == '\n' : CharTable.isSpace(c)) {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+}
@@ -1,141 +1,396 @@
 package miniplc0java.tokenizer;
 
-import java.util.ArrayList;
-import java.util.Optional;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.Scanner;
 
+import miniplc0java.util.LineIndex;
 import miniplc0java.util.Pos;
 
 /**
  * 这是一个从 C++ 版本抄过来的字符迭代器
+ * <p>
+ * 源文件按字节处理，一个字节就是一个字符，行号列号也按字节算。miniplc0 的源程序只能是 ASCII：
+ * 非 ASCII 的字节不是合法的字符，词法分析遇到第一个这样的字节就报 InvalidInput。
+ * 它前面的内容都是 ASCII，所以报告的列号和按 UTF-8 解码之后的字符列号相同
  */
 public class StringIter {
-    // 以行为基础的缓冲区
-    ArrayList<String> linesBuffer = new ArrayList<>();
+    /** 流式读取时默认的窗口大小 */
+    public static final int DEFAULT_WINDOW_SIZE = 64 * 1024;
+    /**
+     * 流式读取时行首偏移表保留的行数。Tokenizer 在分析出 token 的时候就把它的位置算好，
+     * 之后不再查这张表；表只用来回退到上一行和报告当前行上的词法错误，最近几行就够了
+     */
+    public static final int STREAM_LINE_WINDOW = 1024;
+
+    // 源文件的字节缓冲区
+    // 文件输入时是 FileChannel.map 得到的内存映射，一次性读入时是堆缓冲区，
+    // 流式读取时是一个固定大小的窗口，随着指针前进从 stream 中补充
+    ByteBuffer buffer;
+
+    // buffer 第 0 个字节在整个源文件中的偏移
+    int bufferStart = 0;
+
+    // 流式读取的来源，一次性读入或者已经读到结尾时为 null
+    InputStream stream;
+
+    // 指针：下一个要读取的字符的偏移，以及它的行号和列号
+    // 全部用基本类型保存，逐字符前进的时候不会产生任何对象
+    int offset = 0;
+    int row = 0;
+    int col = 0;
+
+    // 行首偏移表，Token 只保存偏移，需要行列号时用它来换算
+    LineIndex lines = new LineIndex();
 
-    Scanner scanner;
-    // 指向下一个要读取的字符
-    Pos ptrNext = new Pos(0, 0);
+    // 标记的起始偏移，没有标记时为 -1
+    // 流式读取时从标记开始的内容不会被移出窗口，词法分析可以在读完一个 token 之后再回头看它的内容
+    int mark = -1;
+
+    /**
+     * 把整个文件映射到内存，直接在映射的缓冲区上做词法分析
+     *
+     * @param path 源文件路径
+     * @throws IOException 打开或映射文件失败
+     */
+    public StringIter(Path path) throws IOException {
+        this(map(path));
+    }
+
+    /**
+     * 无法映射的输入（比如标准输入）一次性读入全部内容
+     *
+     * @param input 输入流
+     * @throws IOException 读取失败
+     */
+    public StringIter(InputStream input) throws IOException {
+        this(ByteBuffer.wrap(input.readAllBytes()));
+    }
 
-    Pos ptr = new Pos(0, 0);
+    /**
+     * 直接在给定的缓冲区上做词法分析，偏移从缓冲区的第 0 个字节开始算
+     *
+     * @param buffer 源文件内容
+     */
+    public StringIter(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
 
-    boolean initialized = false;
+    /**
+     * 把整个文件映射到内存
+     *
+     * @param path 源文件路径
+     * @return 只读的映射缓冲区
+     * @throws IOException 打开或映射文件失败
+     */
+    public static ByteBuffer map(Path path) throws IOException {
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            // 映射在 channel 关闭后依然有效
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
 
-    Optional<Character> peeked = Optional.empty();
+    /**
+     * 流式读取：只保留一个固定大小的窗口，指针前进时再从输入流补充，
+     * 行首偏移表也只保留最近 STREAM_LINE_WINDOW 行，内存占用和输入大小无关
+     *
+     * @param input      输入流
+     * @param windowSize 窗口大小（字节）
+     */
+    public StringIter(InputStream input, int windowSize) {
+        if (windowSize < 2) {
+            throw new IllegalArgumentException("window size must be at least 2");
+        }
+        this.stream = input;
+        this.lines = new LineIndex(STREAM_LINE_WINDOW);
+        this.buffer = ByteBuffer.wrap(new byte[windowSize]);
+        this.buffer.limit(0);
+    }
 
     public StringIter(Scanner scanner) {
-        this.scanner = scanner;
+        var sb = new StringBuilder();
+        while (scanner.hasNext()) {
+            sb.append(scanner.nextLine()).append('\n');
+        }
+        this.buffer = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
     }
 
-    // 从这里开始其实是一个基于行号的缓冲区的实现
-    // 为了简单起见，我们没有单独拿出一个类实现
+    // 从这里开始其实是一个基于偏移的缓冲区的实现
     // 核心思想和 C 的文件输入输出类似，就是一个 buffer 加一个指针，有三个细节
-    // 1.缓冲区包括 \n
+    // 1.缓冲区就是源文件的原始字节，每个字节当作一个字符（ASCII 以外的字节按 ISO-8859-1 看待，只用来报错）
     // 2.指针始终指向下一个要读取的 char
-    // 3.行号和列号从 0 开始
+    // 3.行号和列号从 0 开始，遇到 \n 换行
 
-    // 一次读入全部内容，并且替换所有换行为 \n
-    // 这样其实是不合理的，这里只是简单起见这么实现
+    // 缓冲区在构造时就已经准备好了，这里只是为了兼容以前的调用方式
     public void readAll() {
-        if (initialized) {
-            return;
+    }
+
+    private char charAt(int index) {
+        return (char) (buffer.get(index - bufferStart) & 0xff);
+    }
+
+    /**
+     * 保证偏移为 index 的字符在缓冲区里
+     *
+     * @return 如果已经超出输入结尾则返回 false
+     */
+    private boolean ensure(int index) {
+        while (index >= bufferStart + buffer.limit()) {
+            if (stream == null) {
+                return false;
+            }
+            refill();
         }
-        while (scanner.hasNext()) {
-            linesBuffer.add(scanner.nextLine() + '\n');
+        return true;
+    }
+
+    /**
+     * 从输入流补充窗口。为了支持 unreadLast()，当前指针前面的一个字符会被保留下来，
+     * 如果有标记，从标记开始的内容也会被保留，窗口放不下的时候扩大窗口。
+     * 读取失败时抛出 UncheckedIOException，由 Tokenizer 转换成 StreamError
+     */
+    private void refill() {
+        var window = buffer.array();
+        int keepFrom = Math.max(bufferStart, offset - 1);
+        if (mark >= 0) {
+            keepFrom = Math.min(keepFrom, mark);
         }
-        // todo:check read \n?
-        initialized = true;
+        int kept = bufferStart + buffer.limit() - keepFrom;
+        if (kept == window.length) {
+            var larger = new byte[window.length * 2];
+            System.arraycopy(window, keepFrom - bufferStart, larger, 0, kept);
+            window = larger;
+            buffer = ByteBuffer.wrap(window);
+        } else {
+            System.arraycopy(window, keepFrom - bufferStart, window, 0, kept);
+        }
+        bufferStart = keepFrom;
+        int read;
+        try {
+            read = stream.read(window, kept, window.length - kept);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (read < 0) {
+            stream = null;
+            read = 0;
+        }
+        buffer.limit(kept + read);
     }
 
     // 一个简单的总结
     // | 0 | 1 | 2 | 3 | 4 | 5 | 6 | 7 | 8 | 9 | 偏移
     // | = | = | = | = | = | = | = | = | = | = |
-    // | h | a | 1 | 9 | 2 | 6 | 0 | 8 | 1 | \n |（缓冲区第0行）
-    // | 7 | 1 | 1 | 4 | 5 | 1 | 4 | （缓冲区第1行）
+    // | h | a | 1 | 9 | 2 | 6 | 0 | 8 | 1 | \n |（第0行）
+    // | 7 | 1 | 1 | 4 | 5 | 1 | 4 | （第1行）
     // 这里假设指针指向第一行的 \n，那么有
     // nextPos() = (1, 0)
     // currentPos() = (0, 9)
     // previousPos() = (0, 8)
     // nextChar() = '\n' 并且指针移动到 (1, 0)
     // peekChar() = '\n' 并且指针不移动
+    // 返回 Pos 的几个方法只是兼容以前的接口，每次调用都会新建对象，
+    // 热路径上应该用 currentOffset()/currentRow()/currentCol()
     /**
      * 获取下一个字符的位置
      */
     public Pos nextPos() {
-        if (ptr.row >= linesBuffer.size()) {
+        if (isEOF()) {
             throw new Error("advance after EOF");
         }
-        if (ptr.col == linesBuffer.get(ptr.row).length() - 1) {
-            return new Pos(ptr.row + 1, 0);
+        if (charAt(offset) == '\n') {
+            return new Pos(row + 1, 0);
         }
-        return new Pos(ptr.row, ptr.col + 1);
+        return new Pos(row, col + 1);
     }
 
     /**
      * 获取当前字符的位置
      */
     public Pos currentPos() {
-        return ptr;
+        return new Pos(row, col);
     }
 
     /**
      * 获取上一个字符的位置
      */
     public Pos previousPos() {
-        if (ptr.row == 0 && ptr.col == 0) {
+        if (row == 0 && col == 0) {
             throw new Error("previous position from beginning");
         }
-        if (ptr.col == 0) {
-            return new Pos(ptr.row - 1, linesBuffer.get(ptr.row - 1).length() - 1);
+        if (col == 0) {
+            return new Pos(row - 1, lines.getLineStart(row) - lines.getLineStart(row - 1) - 1);
         }
-        return new Pos(ptr.row, ptr.col - 1);
+        return new Pos(row, col - 1);
+    }
+
+    /**
+     * 当前字符在源文件中的偏移
+     */
+    public int currentOffset() {
+        return offset;
+    }
+
+    /**
+     * 当前字符的行号
+     */
+    public int currentRow() {
+        return row;
+    }
+
+    /**
+     * 当前字符的列号
+     */
+    public int currentCol() {
+        return col;
+    }
+
+    /**
+     * 在当前位置做标记
+     */
+    public void mark() {
+        mark = offset;
+    }
+
+    /**
+     * 清除标记
+     */
+    public void clearMark() {
+        mark = -1;
+    }
+
+    /**
+     * @return 从标记到当前位置的字符数
+     */
+    public int markedLength() {
+        return offset - mark;
+    }
+
+    /**
+     * @param index 相对标记的下标
+     * @return 标记之后第 index 个字符
+     */
+    public char markedChar(int index) {
+        return charAt(mark + index);
+    }
+
+    /**
+     * @return 从标记到当前位置的内容
+     */
+    public String markedString() {
+        var bytes = new byte[offset - mark];
+        buffer.get(mark - bufferStart, bytes);
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * 已经读过的部分的行首偏移表
+     */
+    public LineIndex getLineIndex() {
+        return lines;
     }
 
     /**
      * 将指针指向下一个字符，并返回当前字符
      */
     public char nextChar() {
-        if (this.peeked.isPresent()) {
-            char ch = this.peeked.get();
-            this.peeked = Optional.empty();
-            this.ptr = ptrNext;
-            return ch;
+        if (!ensure(offset)) {
+            return 0;
+        }
+        char ch = charAt(offset);
+        offset++;
+        if (ch == '\n') {
+            lines.addLineStart(offset);
+            row++;
+            col = 0;
         } else {
-            char ch = this.getNextChar();
-            this.ptr = ptrNext;
-            return ch;
+            col++;
         }
+        return ch;
     }
 
-    private char getNextChar() {
-        if (isEOF()) {
+    /**
+     * 查看下一个字符，但不移动指针
+     */
+    public char peekChar() {
+        if (!ensure(offset)) {
             return 0;
         }
-        char result = linesBuffer.get(ptrNext.row).charAt(ptrNext.col);
-        ptrNext = nextPos();
-        return result;
+        return charAt(offset);
     }
 
     /**
-     * 查看下一个字符，但不移动指针
+     * 跳过连续的空白字符。
+     * 缓冲区里剩下至少 8 个字节时先按 8 字节一组跳过整段的空格（缩进），其余的逐字符判断
      */
-    public char peekChar() {
-        if (peeked.isPresent()) {
-            return peeked.get();
-        } else {
-            char ch = getNextChar();
-            this.peeked = Optional.of(ch);
-            return ch;
+    public void skipWhitespace() {
+        while (true) {
+            skipBlocks(false);
+            if (!ensure(offset) || !CharTable.isSpace(charAt(offset))) {
+                return;
+            }
+            nextChar();
+        }
+    }
+
+    /**
+     * 跳过连续的字母和数字。
+     * 缓冲区里剩下至少 8 个字节时先按 8 字节一组跳过，遇到非 ASCII 字节退回逐字符判断（然后停在它前面）
+     */
+    public void skipIdentParts() {
+        while (true) {
+            skipBlocks(true);
+            if (!ensure(offset) || !CharTable.isIdentPart(charAt(offset))) {
+                return;
+            }
+            nextChar();
         }
     }
 
-    public Boolean isEOF() {
-        return ptr.row >= linesBuffer.size();
+    /**
+     * 按 8 字节一组前进，只在当前缓冲区内进行，不会触发补充。
+     * 两种情况下整组字节里都不会有 \n，所以只需要移动列号
+     *
+     * @param identParts true 跳过字母数字，false 跳过空格
+     */
+    private void skipBlocks(boolean identParts) {
+        int index = offset - bufferStart;
+        int limit = buffer.limit() - 8;
+        while (index <= limit) {
+            long word = buffer.getLong(index);
+            if (identParts ? !CharTable.allIdentParts(word) : !CharTable.allSpaces(word)) {
+                break;
+            }
+            index += 8;
+        }
+        int skipped = index - (offset - bufferStart);
+        offset += skipped;
+        col += skipped;
+    }
+
+    public boolean isEOF() {
+        return !ensure(offset);
     }
 
     // Note: Is it evil to unread a buffer?
+    // 流式读取时只保证能回退一个字符
     public void unreadLast() {
-        ptr = previousPos();
+        if (row == 0 && col == 0) {
+            throw new Error("previous position from beginning");
+        }
+        offset--;
+        if (col == 0) {
+            row--;
+            col = offset - lines.getLineStart(row);
+        } else {
+            col--;
+        }
     }
 
 }
@@ -1,6 +1,7 @@
 package miniplc0java.tokenizer;
 
 import miniplc0java.error.TokenizeError;
+import miniplc0java.util.LineIndex;
 import miniplc0java.util.Pos;
 
 import java.util.Objects;
@@ -8,21 +9,49 @@ import java.util.Objects;
 public class Token {
     private TokenType tokenType;
     private Object value;
-    private Pos startPos;
-    private Pos endPos;
+    // 位置只保存源文件中的偏移，行号列号在需要的时候通过共享的行首偏移表算出来
+    private int startOffset;
+    private int endOffset;
+    private LineIndex lines;
+    /**
+     * 分析时就算好的起始位置（Pos.pack），-1 表示需要时用 lines 换算。
+     * 行首偏移表只保留最近的行时（流式读取）一定有，token 不跨行，结束位置也可以由它算出
+     */
+    private long startPos = -1;
+    /** Ident 在 IdentifierTable 里的编号，其他 token 为 -1 */
+    private int identifierId;
+
+    public Token(TokenType tokenType, Object value, int startOffset, int endOffset, LineIndex lines) {
+        this(tokenType, value, startOffset, endOffset, lines, -1);
+    }
+
+    public Token(TokenType tokenType, Object value, int startOffset, int endOffset, LineIndex lines,
+            int identifierId) {
+        this(tokenType, value, startOffset, endOffset, lines, identifierId, -1);
+    }
 
-    public Token(TokenType tokenType, Object value, Pos startPos, Pos endPos) {
+    /**
+     * @param startPos 已经算好的起始位置（Pos.pack），-1 表示需要时用 lines 换算
+     */
+    public Token(TokenType tokenType, Object value, int startOffset, int endOffset, LineIndex lines,
+            int identifierId, long startPos) {
         this.tokenType = tokenType;
         this.value = value;
+        this.startOffset = startOffset;
+        this.endOffset = endOffset;
+        this.lines = lines;
+        this.identifierId = identifierId;
         this.startPos = startPos;
-        this.endPos = endPos;
     }
 
     public Token(Token token) {
         this.tokenType = token.tokenType;
         this.value = token.value;
+        this.startOffset = token.startOffset;
+        this.endOffset = token.endOffset;
+        this.lines = token.lines;
         this.startPos = token.startPos;
-        this.endPos = token.endPos;
+        this.identifierId = token.identifierId;
     }
 
     @Override
@@ -33,12 +62,12 @@ public class Token {
             return false;
         Token token = (Token) o;
         return tokenType == token.tokenType && Objects.equals(value, token.value)
-                && Objects.equals(startPos, token.startPos) && Objects.equals(endPos, token.endPos);
+                && startOffset == token.startOffset && endOffset == token.endOffset;
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(tokenType, value, startPos, endPos);
+        return Objects.hash(tokenType, value, startOffset, endOffset);
     }
 
     public String getValueString() {
@@ -65,26 +94,68 @@ public class Token {
     }
 
     public Pos getStartPos() {
-        return startPos;
+        if (startPos >= 0) {
+            return Pos.unpack(startPos);
+        }
+        return lines.posOf(startOffset);
     }
 
     public void setStartPos(Pos startPos) {
-        this.startPos = startPos;
+        if (this.startPos >= 0) {
+            // 同一行内移动只改列号，不需要查行首偏移表
+            var old = Pos.unpack(this.startPos);
+            this.startOffset = old.row == startPos.row ? startOffset + startPos.col - old.col
+                    : lines.offsetOf(startPos);
+            this.startPos = Pos.pack(startPos.row, startPos.col);
+            return;
+        }
+        this.startOffset = lines.offsetOf(startPos);
     }
 
     public Pos getEndPos() {
-        return endPos;
+        if (startPos >= 0) {
+            var pos = Pos.unpack(startPos);
+            return new Pos(pos.row, pos.col + endOffset - startOffset);
+        }
+        return lines.posOf(endOffset);
     }
 
     public void setEndPos(Pos endPos) {
-        this.endPos = endPos;
+        if (startPos >= 0) {
+            var start = Pos.unpack(startPos);
+            if (start.row == endPos.row) {
+                this.endOffset = startOffset + endPos.col - start.col;
+                return;
+            }
+        }
+        this.endOffset = lines.offsetOf(endPos);
+    }
+
+    public int getStartOffset() {
+        return startOffset;
+    }
+
+    public int getEndOffset() {
+        return endOffset;
+    }
+
+    public LineIndex getLineIndex() {
+        return lines;
+    }
+
+    /**
+     * @return Ident 在 IdentifierTable 里的编号，其他 token 为 -1
+     */
+    public int getIdentifierId() {
+        return identifierId;
     }
 
     @Override
     public String toString() {
+        var startPos = getStartPos();
         var sb = new StringBuilder();
-        sb.append("Line: ").append(this.startPos.row).append(' ');
-        sb.append("Column: ").append(this.startPos.col).append(' ');
+        sb.append("Line: ").append(startPos.row).append(' ');
+        sb.append("Column: ").append(startPos.col).append(' ');
         sb.append("Type: ").append(this.tokenType).append(' ');
         sb.append("Value: ").append(this.value);
         return sb.toString();
@@ -92,6 +163,6 @@ public class Token {
 
     public String toStringAlt() {
         return new StringBuilder().append("Token(").append(this.tokenType).append(", value: ").append(value)
-                .append("at: ").append(this.startPos).toString();
+                .append("at: ").append(getStartPos()).toString();
     }
 }
@@ -0,0 +1,255 @@
+package miniplc0java.tokenizer;
+
+import java.util.Arrays;
+
+import miniplc0java.error.TokenizeError;
+import miniplc0java.util.LineIndex;
+
+/**
+ * 按列存储的 token 序列。
+ * 类型、偏移、长度、整数值分别放在基本类型数组里，不为每个 token 创建对象；
+ * 只有在需要的时候（比如输出或者报错）才通过 get() 还原出 Token
+ */
+public class TokenBuffer {
+    private static final TokenType[] TOKEN_TYPES = TokenType.values();
+
+    /** TokenType 的序号 */
+    private byte[] types = new byte[1024];
+    private int[] offsets = new int[1024];
+    private int[] lengths = new int[1024];
+    /** Uint 是整数值，Ident 是标识符表里的编号，其他类型没有意义 */
+    private int[] values = new int[1024];
+    /** 分析时算好的起始位置（Pos.pack），只在行首偏移表只保留最近的行时才有，否则为 null */
+    private long[] positions;
+    private int size = 0;
+
+    private final IdentifierTable identifiers;
+
+    private LineIndex lines;
+
+    /** 词法分析遇到的错误，它之前的 token 依然保存在缓冲区里 */
+    private TokenizeError error;
+
+    public TokenBuffer(LineIndex lines, IdentifierTable identifiers) {
+        this.lines = lines;
+        this.identifiers = identifiers;
+        if (lines.isBounded()) {
+            this.positions = new long[types.length];
+        }
+    }
+
+    /**
+     * 一次性分析全部 token，直到 EOF 或者遇到错误为止
+     *
+     * @param tokenizer 词法分析器
+     * @return 分析结果，如果有错误可以用 getError() 取出
+     */
+    public static TokenBuffer tokenize(Tokenizer tokenizer) {
+        var buffer = new TokenBuffer(tokenizer.getLineIndex(), tokenizer.getIdentifiers());
+        try {
+            while (tokenizer.nextTokenInto(buffer) != TokenType.EOF) {
+            }
+        } catch (TokenizeError e) {
+            buffer.error = e;
+        }
+        return buffer;
+    }
+
+    /**
+     * 追加一个 token
+     *
+     * @param tokenType 类型
+     * @param start     起始偏移
+     * @param end       结束偏移
+     * @param value     Uint 的值或者 Ident 的编号
+     */
+    void add(TokenType tokenType, int start, int end, int value) {
+        add(tokenType, start, end, value, -1);
+    }
+
+    /**
+     * 追加一个 token，同时记下分析时算好的起始位置
+     *
+     * @param startPos 起始位置（Pos.pack），-1 表示需要时用行首偏移表换算
+     */
+    void add(TokenType tokenType, int start, int end, int value, long startPos) {
+        if (size == types.length) {
+            int capacity = size * 2;
+            types = Arrays.copyOf(types, capacity);
+            offsets = Arrays.copyOf(offsets, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            values = Arrays.copyOf(values, capacity);
+            if (positions != null) {
+                positions = Arrays.copyOf(positions, capacity);
+            }
+        }
+        types[size] = (byte) tokenType.ordinal();
+        offsets[size] = start;
+        lengths[size] = end - start;
+        values[size] = value;
+        if (positions != null) {
+            positions[size] = startPos;
+        }
+        size++;
+    }
+
+    /**
+     * 把另一段源文件分析出的 token 接到后面。
+     * 这一段有自己的标识符表，每个编号只在第一次遇到时换算一次
+     *
+     * @param chunk      这一段的分析结果，偏移相对于这一段的开头
+     * @param baseOffset 这一段在整个源文件中的起始偏移
+     * @param keepEOF    是否保留这一段最后的 EOF
+     */
+    void append(TokenBuffer chunk, int baseOffset, boolean keepEOF) {
+        int count = chunk.size;
+        if (count > 0 && !keepEOF && chunk.getType(count - 1) == TokenType.EOF) {
+            count--;
+        }
+        var remap = new int[chunk.identifiers.size()];
+        Arrays.fill(remap, -1);
+        for (int i = 0; i < count; i++) {
+            var tokenType = chunk.getType(i);
+            int value = chunk.values[i];
+            if (tokenType == TokenType.Ident) {
+                if (remap[value] < 0) {
+                    remap[value] = identifiers.intern(chunk.identifiers.getName(value));
+                }
+                value = remap[value];
+            }
+            add(tokenType, baseOffset + chunk.offsets[i], baseOffset + chunk.getEndOffset(i), value);
+        }
+    }
+
+    void setError(TokenizeError error) {
+        this.error = error;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public TokenType getType(int index) {
+        return TOKEN_TYPES[types[index]];
+    }
+
+    public int getStartOffset(int index) {
+        return offsets[index];
+    }
+
+    public int getEndOffset(int index) {
+        return offsets[index] + lengths[index];
+    }
+
+    /**
+     * @return Uint 的值
+     */
+    public int getIntValue(int index) {
+        return values[index];
+    }
+
+    /**
+     * @return Ident 的名字
+     */
+    public String getName(int index) {
+        return identifiers.getName(values[index]);
+    }
+
+    /**
+     * @return Ident 在标识符表里的编号
+     */
+    public int getIdentifierId(int index) {
+        return values[index];
+    }
+
+    public IdentifierTable getIdentifiers() {
+        return identifiers;
+    }
+
+    public LineIndex getLineIndex() {
+        return lines;
+    }
+
+    public TokenizeError getError() {
+        return error;
+    }
+
+    /**
+     * 还原出第 index 个 Token
+     */
+    public Token get(int index) {
+        var tokenType = getType(index);
+        String name = tokenType == TokenType.Ident ? getName(index) : null;
+        return new Token(tokenType, Tokenizer.valueOf(tokenType, values[index], name), offsets[index],
+                getEndOffset(index), lines, tokenType == TokenType.Ident ? values[index] : -1,
+                positions != null ? positions[index] : -1);
+    }
+
+    /**
+     * @return 从第一个 token 开始的游标
+     */
+    public Cursor cursor() {
+        return new Cursor(0);
+    }
+
+    /**
+     * @return 从第 index 个 token 开始的游标
+     */
+    public Cursor cursor(int index) {
+        return new Cursor(index);
+    }
+
+    /**
+     * 缓冲区上的游标。读到 EOF 之后一直停在 EOF；
+     * 如果分析时遇到过错误，读到错误的位置时抛出这个错误
+     */
+    public class Cursor implements TokenStream {
+        private int index;
+
+        private Cursor(int index) {
+            this.index = index;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        /**
+         * 查看下一个 token 的类型，不创建 Token 对象
+         */
+        public TokenType peekType() throws TokenizeError {
+            checkError();
+            return getType(index);
+        }
+
+        /**
+         * 查看下一个 token，但不移动游标
+         */
+        public Token peekToken() throws TokenizeError {
+            checkError();
+            return get(index);
+        }
+
+        @Override
+        public Token nextToken() throws TokenizeError {
+            var token = peekToken();
+            advance();
+            return token;
+        }
+
+        /**
+         * 跳过下一个 token
+         */
+        public void advance() {
+            if (index < size && types[index] != TokenType.EOF.ordinal()) {
+                index++;
+            }
+        }
+
+        private void checkError() throws TokenizeError {
+            if (index >= size) {
+                throw error;
+            }
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package miniplc0java.tokenizer;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import miniplc0java.error.TokenizeError;
+
+/**
+ * 流水线式的词法分析：Tokenizer 在单独的线程上运行，
+ * 分析出的 token 按批放进一个单生产者单消费者的无锁环形缓冲区，语法分析在当前线程上消费。
+ * 词法错误跟在它之前的所有 token 后面传过来，所以和顺序分析时在同一个位置抛出
+ */
+public class TokenPipeline implements TokenStream {
+    /** 每一批的 token 数 */
+    static final int BATCH_SIZE = 256;
+    /** 环形缓冲区能放下的批数，必须是 2 的幂 */
+    static final int CAPACITY = 64;
+
+    private static final int SPIN_LIMIT = 256;
+    private static final long PARK_NANOS = 20_000;
+
+    /**
+     * 一批 token，failure 不为空时表示生产者在这批 token 之后遇到了错误
+     */
+    private static final class Batch {
+        final Token[] tokens;
+        final int count;
+        final Throwable failure;
+
+        Batch(Token[] tokens, int count, Throwable failure) {
+            this.tokens = tokens;
+            this.count = count;
+            this.failure = failure;
+        }
+    }
+
+    private final TokenStream source;
+    private final Batch[] slots = new Batch[CAPACITY];
+    /** 消费者已经取走的批数，只由消费者写 */
+    private final AtomicLong head = new AtomicLong();
+    /** 生产者已经放入的批数，只由生产者写 */
+    private final AtomicLong tail = new AtomicLong();
+    private volatile boolean closed = false;
+
+    // 以下只在消费者线程上使用
+    private Batch current = null;
+    private int index = 0;
+    private Token eof = null;
+
+    public TokenPipeline(TokenStream source) {
+        this.source = source;
+    }
+
+    /**
+     * 启动生产者线程
+     *
+     * @return this
+     */
+    public TokenPipeline start() {
+        var thread = new Thread(this::produce, "tokenizer");
+        thread.setDaemon(true);
+        thread.start();
+        return this;
+    }
+
+    /**
+     * 停止生产者，之后不应该再调用 nextToken()。
+     * 消费者提前结束（比如语法分析出错）时必须调用，否则生产者会一直等着放入下一批
+     */
+    public void close() {
+        closed = true;
+    }
+
+    @Override
+    public Token nextToken() throws TokenizeError {
+        if (eof != null) {
+            return eof;
+        }
+        while (current == null || index == current.count) {
+            if (current != null && current.failure != null) {
+                rethrow(current.failure);
+            }
+            current = take();
+            index = 0;
+        }
+        var token = current.tokens[index++];
+        if (token.getTokenType() == TokenType.EOF) {
+            eof = token;
+        }
+        return token;
+    }
+
+    private static void rethrow(Throwable failure) throws TokenizeError {
+        if (failure instanceof TokenizeError) {
+            throw (TokenizeError) failure;
+        } else if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else {
+            throw (Error) failure;
+        }
+    }
+
+    private void produce() {
+        var tokens = new Token[BATCH_SIZE];
+        int count = 0;
+        try {
+            while (!closed) {
+                var token = source.nextToken();
+                tokens[count++] = token;
+                if (token.getTokenType() == TokenType.EOF) {
+                    put(new Batch(tokens, count, null));
+                    return;
+                }
+                if (count == BATCH_SIZE) {
+                    if (!put(new Batch(tokens, count, null))) {
+                        return;
+                    }
+                    tokens = new Token[BATCH_SIZE];
+                    count = 0;
+                }
+            }
+        } catch (TokenizeError | RuntimeException | Error e) {
+            put(new Batch(tokens, count, e));
+        }
+    }
+
+    /**
+     * @return 是否放入了；流水线已经关闭时返回 false，生产者应该结束
+     */
+    private boolean put(Batch batch) {
+        long t = tail.get();
+        int spins = 0;
+        while (t - head.get() == CAPACITY) {
+            if (closed) {
+                return false;
+            }
+            spins = backoff(spins);
+        }
+        slots[(int) t & (CAPACITY - 1)] = batch;
+        // 先写槽位再发布 tail，消费者读到新的 tail 时一定能看到槽位里的内容
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    private Batch take() {
+        long h = head.get();
+        int spins = 0;
+        while (h == tail.get()) {
+            spins = backoff(spins);
+        }
+        int slot = (int) h & (CAPACITY - 1);
+        var batch = slots[slot];
+        slots[slot] = null;
+        head.lazySet(h + 1);
+        return batch;
+    }
+
+    /**
+     * 先自旋，等太久了再短暂休眠
+     */
+    private static int backoff(int spins) {
+        if (spins < SPIN_LIMIT) {
+            Thread.onSpinWait();
+            return spins + 1;
+        }
+        LockSupport.parkNanos(PARK_NANOS);
+        return spins;
+    }
+}
@@ -0,0 +1,16 @@
+package miniplc0java.tokenizer;
+
+import miniplc0java.error.TokenizeError;
+
+/**
+ * 按顺序产生 token 的来源。读到结尾之后应该一直返回 EOF token
+ */
+public interface TokenStream {
+    /**
+     * 获取下一个 Token
+     *
+     * @return 下一个 token
+     * @throws TokenizeError 如果解析有异常则抛出
+     */
+    Token nextToken() throws TokenizeError;
+}
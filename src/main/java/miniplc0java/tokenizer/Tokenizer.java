@@ -3,109 +3,255 @@ package miniplc0java.tokenizer;
 import miniplc0java.error.CompileError;
 import miniplc0java.error.TokenizeError;
 import miniplc0java.error.ErrorCode;
+import miniplc0java.util.LineIndex;
 import miniplc0java.util.Pos;
 
-import java.security.Key;
+import java.io.UncheckedIOException;
 
-public class Tokenizer {
+public class Tokenizer implements TokenStream {
 
     private StringIter it;
 
-    public Tokenizer(StringIter it) {
+    // 最近一次分析出的 token，用基本类型保存
+    // 批量分析（nextTokenInto）时直接写进 TokenBuffer，不需要创建 Token 对象
+    private TokenType tokenType;
+    private int tokenStart;
+    /** Uint 的值 */
+    private int intValue;
+    /** Ident 的名字 */
+    private String textValue;
+    /** Ident 的编号 */
+    private int identifierId;
+
+    private final IdentifierTable identifiers;
+
+    public Tokenizer(StringIter it, IdentifierTable identifiers) {
         this.it = it;
+        this.identifiers = identifiers;
+    }
+
+    public Tokenizer(StringIter it) {
+        this(it, new IdentifierTable());
     }
 
     // 这里本来是想实现 Iterator<Token> 的，但是 Iterator 不允许抛异常，于是就这样了
     /**
      * 获取下一个 Token
-     * 
+     *
      * @return 获取下一个token
      * @throws TokenizeError 如果解析有异常则抛出
      */
+    @Override
     public Token nextToken() throws TokenizeError {
-        it.readAll();
+        lexNext();
+        return new Token(tokenType, valueOf(tokenType, intValue, textValue), tokenStart, it.currentOffset(),
+                it.getLineIndex(), tokenType == TokenType.Ident ? identifierId : -1, resolvedStart());
+    }
 
+    /**
+     * 分析下一个 Token 并追加到 buffer 里
+     *
+     * @param buffer 目标缓冲区
+     * @return 这个 token 的类型
+     * @throws TokenizeError 如果解析有异常则抛出
+     */
+    public TokenType nextTokenInto(TokenBuffer buffer) throws TokenizeError {
+        lexNext();
+        buffer.add(tokenType, tokenStart, it.currentOffset(), tokenType == TokenType.Ident ? identifierId : intValue,
+                resolvedStart());
+        return tokenType;
+    }
+
+    /**
+     * 行首偏移表只保留最近的行时，token 可能在它所在的行被丢掉之后才用到（比如 -t 输出全部 token，
+     * 或者 TokenPipeline 里排队的 token），所以在分析出来的时候就把位置算好。
+     * token 不跨行，指针还在它所在的行上
+     *
+     * @return 刚分析出的 token 的起始位置（Pos.pack），不需要时为 -1
+     */
+    private long resolvedStart() {
+        if (!it.getLineIndex().isBounded()) {
+            return -1;
+        }
+        return Pos.pack(it.currentRow(), it.currentCol() - (it.currentOffset() - tokenStart));
+    }
+
+    /**
+     * 源文件的行首偏移表
+     */
+    public LineIndex getLineIndex() {
+        return it.getLineIndex();
+    }
+
+    /**
+     * 标识符表，分析出的 Ident 的编号都在这个表里
+     */
+    public IdentifierTable getIdentifiers() {
+        return identifiers;
+    }
+
+    /**
+     * 各种 token 的 value：Uint 是整数值，Ident 是名字，关键字是小写的关键字，运算符是对应的字符
+     */
+    static Object valueOf(TokenType tokenType, int intValue, String textValue) {
+        return switch (tokenType) {
+            case Uint -> intValue;
+            case Ident -> textValue;
+            case Begin -> "begin";
+            case End -> "end";
+            case Var -> "var";
+            case Const -> "const";
+            case Print -> "print";
+            case Plus -> '+';
+            case Minus -> '-';
+            case Mult -> '*';
+            case Div -> '/';
+            case Equal -> '=';
+            case Semicolon -> ';';
+            case LParen -> '(';
+            case RParen -> ')';
+            default -> "";
+        };
+    }
+
+    private void lexNext() throws TokenizeError {
+        try {
+            lexToken();
+        } catch (UncheckedIOException e) {
+            // 流式读取时的 IO 错误
+            throw new TokenizeError(ErrorCode.StreamError, it.currentPos());
+        }
+    }
+
+    private void lexToken() throws TokenizeError {
         // 跳过之前的所有空白字符
         skipSpaceCharacters();
 
         if (it.isEOF()) {
-            return new Token(TokenType.EOF, "", it.currentPos(), it.currentPos());
+            setToken(TokenType.EOF, it.currentOffset());
+            return;
         }
 
         char peek = it.peekChar();
-        if (Character.isDigit(peek)) {
-            return lexUInt();
-        } else if (Character.isAlphabetic(peek)) {
-            return lexIdentOrKeyword();
+        if (CharTable.isDigit(peek)) {
+            lexUInt();
+        } else if (CharTable.isAlpha(peek)) {
+            lexIdentOrKeyword();
         } else {
-            return lexOperatorOrUnknown();
+            lexOperatorOrUnknown();
         }
     }
 
-    private Token lexUInt() throws TokenizeError {
-        // 请填空：
-        StringBuilder str_val = new StringBuilder();
-        // 直到查看下一个字符不是数字为止:
+    private void lexUInt() throws TokenizeError {
+        int start = it.currentOffset();
+        int value = 0;
+        // 直到查看下一个字符不是数字为止，逐位累加，不经过字符串
         do {
-            // -- 前进一个字符，并存储这个字符
-            str_val.append(it.nextChar());
-        }while(Character.isDigit(it.peekChar()));
-        //
-        // 解析存储的字符串为无符号整数
-        try {
-            int int_val = Integer.parseInt(str_val.toString());
-            return new Token(TokenType.Uint, int_val, it.previousPos(), it.currentPos());
+            int digit = it.nextChar() - '0';
+            if (value > (Integer.MAX_VALUE - digit) / 10) {
+                // 超出 int32 的范围
+                throw new TokenizeError(ErrorCode.IntegerOverflow, it.getLineIndex().posOf(start));
+            }
+            value = value * 10 + digit;
+        } while (CharTable.isDigit(it.peekChar()));
+        intValue = value;
+        setToken(TokenType.Uint, start);
+    }
+
+    // 关键字表，下标是 keywordHash(首字母, 长度)
+    // 五个关键字的首字母和长度算出来的下标互不相同，查一次表就能确定唯一的候选
+    private static final String[] KEYWORD_TEXT = new String[8];
+    private static final TokenType[] KEYWORD_TYPE = new TokenType[8];
+
+    static {
+        addKeyword("begin", TokenType.Begin);
+        addKeyword("end", TokenType.End);
+        addKeyword("var", TokenType.Var);
+        addKeyword("const", TokenType.Const);
+        addKeyword("print", TokenType.Print);
+    }
+
+    private static void addKeyword(String text, TokenType tokenType) {
+        int hash = keywordHash(text.charAt(0), text.length());
+        if (KEYWORD_TEXT[hash] != null) {
+            throw new Error("Keyword hash collision: " + text);
+        }
+        KEYWORD_TEXT[hash] = text;
+        KEYWORD_TYPE[hash] = tokenType;
+    }
+
+    private static int keywordHash(char first, int length) {
+        return (first + (length << 2)) & 7;
+    }
+
+    /**
+     * 判断刚刚读过的标识符是不是关键字，直接比较缓冲区里的字符
+     *
+     * @return 关键字的类型，不是关键字则返回 null
+     */
+    private TokenType matchKeyword() {
+        int length = it.markedLength();
+        if (length < 3 || length > 5) {
+            return null;
         }
-        catch (NumberFormatException e){
-            // 解析成功则返回无符号整数类型的token，否则返回编译错误
-            throw new Error("Can't recognize parse the string value: "+str_val+" into integer");
+        int hash = keywordHash(it.markedChar(0), length);
+        var text = KEYWORD_TEXT[hash];
+        if (text == null || text.length() != length) {
+            return null;
         }
+        // 哈希只用了首字母的低几位，首字母同样要比较
+        for (int i = 0; i < length; i++) {
+            if (it.markedChar(i) != text.charAt(i)) {
+                return null;
+            }
+        }
+        return KEYWORD_TYPE[hash];
     }
 
-    private Token lexIdentOrKeyword() throws TokenizeError {
-        // 请填空：
-        // 直到查看下一个字符不是数字或字母为止:
-        StringBuilder str_val = new StringBuilder();
-        Pos prePos = it.currentPos();
+    private void lexIdentOrKeyword() throws TokenizeError {
+        int start = it.currentOffset();
+        it.mark();
+        // 直到查看下一个字符不是数字或字母为止
+        it.nextChar();
+        it.skipIdentParts();
 
-        do {
-            // -- 前进一个字符，并存储这个字符
-            str_val.append(it.nextChar());
-        }while (Character.isAlphabetic(it.peekChar()));
-        //
-        // 尝试将存储的字符串解释为关键字
-        //
-        // Token 的 Value 应填写标识符或关键字的字符串
-        // -- 如果是关键字，则返回关键字类型的 token
-        // -- 否则，返回标识符
-        return switch (str_val.toString()) {
-            case "begin" -> new Token(TokenType.Begin, "begin", prePos, it.currentPos());
-            case "end" -> new Token(TokenType.End, "end", prePos, it.currentPos());
-            case "var" -> new Token(TokenType.Var, "var", prePos, it.currentPos());
-            case "const" -> new Token(TokenType.Const, "const", prePos, it.currentPos());
-            case "print" -> new Token(TokenType.Print, "print", prePos, it.currentPos());
-            default -> new Token(TokenType.Ident, str_val.toString(), prePos, it.currentPos());
-        };
+        // 关键字直接按字符比较；标识符在标识符表里查找，只有第一次出现的名字才需要创建字符串
+        var keyword = matchKeyword();
+        if (keyword != null) {
+            setToken(keyword, start);
+        } else {
+            identifierId = identifiers.intern(it);
+            textValue = identifiers.getName(identifierId);
+            setToken(TokenType.Ident, start);
+        }
+        it.clearMark();
     }
 
-    private Token lexOperatorOrUnknown() throws TokenizeError {
+    private void lexOperatorOrUnknown() throws TokenizeError {
         // 操作符 token
-        return switch (it.nextChar()) {
-            case '+' -> new Token(TokenType.Plus, '+', it.previousPos(), it.currentPos());
-            case '-' -> new Token(TokenType.Minus, '-', it.previousPos(), it.currentPos());
-            case '*' -> new Token(TokenType.Mult, '*', it.previousPos(), it.currentPos());
-            case '/' -> new Token(TokenType.Div, '/', it.previousPos(), it.currentPos());
-            case '=' -> new Token(TokenType.Equal, '=', it.previousPos(), it.currentPos());
-            case ';' -> new Token(TokenType.Semicolon, ';', it.previousPos(), it.currentPos());
-            case '(' -> new Token(TokenType.LParen, '(', it.previousPos(), it.currentPos());
-            case ')' -> new Token(TokenType.RParen, ')', it.previousPos(), it.currentPos());
+        var type = switch (it.nextChar()) {
+            case '+' -> TokenType.Plus;
+            case '-' -> TokenType.Minus;
+            case '*' -> TokenType.Mult;
+            case '/' -> TokenType.Div;
+            case '=' -> TokenType.Equal;
+            case ';' -> TokenType.Semicolon;
+            case '(' -> TokenType.LParen;
+            case ')' -> TokenType.RParen;
             default -> throw new TokenizeError(ErrorCode.InvalidInput, it.previousPos());
         };
+        setToken(type, it.currentOffset() - 1);
+    }
+
+    /**
+     * 记录一个从 start 到当前位置的 token
+     */
+    private void setToken(TokenType tokenType, int start) {
+        this.tokenType = tokenType;
+        this.tokenStart = start;
     }
 
     private void skipSpaceCharacters() {
-        while (!it.isEOF() && Character.isWhitespace(it.peekChar())) {
-            it.nextChar();
-        }
+        it.skipWhitespace();
     }
 }
@@ -0,0 +1,122 @@
+package miniplc0java.util;
+
+import java.util.Arrays;
+
+/**
+ * 行首偏移表：记录每一行第一个字符在源文件中的偏移。
+ * 位置只按偏移保存，需要行号列号的时候再用二分查找算出来。
+ * <p>
+ * 流式读取时可以只保留最近的若干行（环形缓冲区），内存占用固定；
+ * 行号依然从文件开头算，查询已经被丢掉的行会抛出 IllegalStateException
+ */
+public class LineIndex {
+    private int[] lineStarts;
+    private int lineCount = 1;
+    /** 第 row 行保存在 lineStarts[row & mask]，不限行数时为 -1 */
+    private final int mask;
+
+    /**
+     * 保留所有行
+     */
+    public LineIndex() {
+        this.lineStarts = new int[16];
+        this.mask = -1;
+    }
+
+    /**
+     * 只保留最近的 maxLines 行（向上取到 2 的幂）
+     *
+     * @param maxLines 最多保留的行数
+     */
+    public LineIndex(int maxLines) {
+        if (maxLines < 2) {
+            throw new IllegalArgumentException("must keep at least 2 lines");
+        }
+        int capacity = Integer.highestOneBit(maxLines - 1) << 1;
+        this.lineStarts = new int[capacity];
+        this.mask = capacity - 1;
+    }
+
+    /**
+     * 记录新的一行从 offset 开始。重复记录（比如回退后再前进）会被忽略
+     *
+     * @param offset 行首偏移
+     */
+    public void addLineStart(int offset) {
+        if (offset <= lineStarts[(lineCount - 1) & mask]) {
+            return;
+        }
+        if (mask == -1 && lineCount == lineStarts.length) {
+            lineStarts = Arrays.copyOf(lineStarts, lineCount * 2);
+        }
+        lineStarts[lineCount & mask] = offset;
+        lineCount++;
+    }
+
+    /**
+     * @return 是否只保留最近的若干行。这时查询旧的位置可能失败，需要在分析的时候就把位置算好
+     */
+    public boolean isBounded() {
+        return mask != -1;
+    }
+
+    public int getLineCount() {
+        return lineCount;
+    }
+
+    /**
+     * @return 还保留着的第一行的行号
+     */
+    public int getFirstLine() {
+        return mask == -1 ? 0 : Math.max(0, lineCount - lineStarts.length);
+    }
+
+    /**
+     * @param row 行号
+     * @return 这一行的行首偏移
+     */
+    public int getLineStart(int row) {
+        if (row < getFirstLine()) {
+            throw new IllegalStateException("line " + row + " is no longer kept");
+        }
+        return lineStarts[row & mask];
+    }
+
+    /**
+     * @param offset 偏移
+     * @return 偏移所在的行号
+     */
+    public int rowOf(int offset) {
+        int lo = getFirstLine();
+        int hi = lineCount - 1;
+        if (lo > 0 && offset < lineStarts[lo & mask]) {
+            throw new IllegalStateException("line of offset " + offset + " is no longer kept");
+        }
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (lineStarts[mid & mask] <= offset) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * @param offset 偏移
+     * @return 偏移对应的位置
+     */
+    public Pos posOf(int offset) {
+        int row = rowOf(offset);
+        return new Pos(row, offset - lineStarts[row & mask]);
+    }
+
+    /**
+     * @param pos 位置
+     * @return 位置对应的偏移
+     */
+    public int offsetOf(Pos pos) {
+        return getLineStart(pos.row) + pos.col;
+    }
+}
@@ -9,6 +9,21 @@ public class Pos {
     public int row;
     public int col;
 
+    /**
+     * 把位置压进一个 long：行号在高 32 位，列号在低 32 位，结果非负
+     */
+    public static long pack(int row, int col) {
+        return ((long) row << 32) | (col & 0xffffffffL);
+    }
+
+    /**
+     * @param packed pack 的结果
+     * @return 对应的位置
+     */
+    public static Pos unpack(long packed) {
+        return new Pos((int) (packed >>> 32), (int) packed);
+    }
+
     public Pos nextCol() {
         return new Pos(row, col + 1);
     }
@@ -0,0 +1,176 @@
+package miniplc0java.vm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.HashMap;
+
+/**
+ * 一个最小的 class 文件生成器，只支持 JIT 需要的部分：
+ * 常量池里的 Utf8/Integer/Class/NameAndType/Methodref，没有字段，方法只带 Code 属性。
+ * 生成的方法里没有跳转，所以不需要 StackMapTable
+ */
+final class ClassFileWriter {
+    private static final int MAGIC = 0xCAFEBABE;
+    /** Java 8 的 class 文件版本 */
+    private static final int MAJOR_VERSION = 52;
+
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_STATIC = 0x0008;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_SUPER = 0x0020;
+
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_INTEGER = 3;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+    private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+    private final DataOutputStream pool = new DataOutputStream(poolBytes);
+    private final HashMap<String, Integer> poolIndex = new HashMap<>();
+    private int poolCount = 1;
+
+    private final ByteArrayOutputStream methodBytes = new ByteArrayOutputStream();
+    private final DataOutputStream methods = new DataOutputStream(methodBytes);
+    private int methodCount = 0;
+
+    private final int thisClass;
+    private final int superClass;
+    private final int access;
+
+    /**
+     * @param name       类的内部名字，比如 miniplc0java/vm/JitCode
+     * @param superName  父类的内部名字
+     * @param access     访问标志
+     */
+    ClassFileWriter(String name, String superName, int access) {
+        this.thisClass = classRef(name);
+        this.superClass = classRef(superName);
+        this.access = access;
+    }
+
+    int utf8(String value) {
+        return constant("U" + value, () -> {
+            pool.writeByte(CONSTANT_UTF8);
+            pool.writeUTF(value);
+        });
+    }
+
+    int integer(int value) {
+        return constant("I" + value, () -> {
+            pool.writeByte(CONSTANT_INTEGER);
+            pool.writeInt(value);
+        });
+    }
+
+    int classRef(String internalName) {
+        int name = utf8(internalName);
+        return constant("C" + internalName, () -> {
+            pool.writeByte(CONSTANT_CLASS);
+            pool.writeShort(name);
+        });
+    }
+
+    int methodRef(String owner, String name, String descriptor) {
+        int ownerIndex = classRef(owner);
+        int nameIndex = utf8(name);
+        int descriptorIndex = utf8(descriptor);
+        int nameAndType = constant("N" + name + ":" + descriptor, () -> {
+            pool.writeByte(CONSTANT_NAME_AND_TYPE);
+            pool.writeShort(nameIndex);
+            pool.writeShort(descriptorIndex);
+        });
+        return constant("M" + owner + "." + name + ":" + descriptor, () -> {
+            pool.writeByte(CONSTANT_METHODREF);
+            pool.writeShort(ownerIndex);
+            pool.writeShort(nameAndType);
+        });
+    }
+
+    /**
+     * @return 常量池的大小，包括不使用的第 0 项
+     */
+    int poolSize() {
+        return poolCount;
+    }
+
+    /**
+     * 添加一个只有 Code 属性的方法
+     *
+     * @param access     访问标志
+     * @param name       方法名
+     * @param descriptor 方法描述符
+     * @param maxStack   操作数栈的最大深度
+     * @param maxLocals  局部变量表的大小
+     * @param code       字节码
+     */
+    void addMethod(int access, String name, String descriptor, int maxStack, int maxLocals, byte[] code) {
+        int nameIndex = utf8(name);
+        int descriptorIndex = utf8(descriptor);
+        int codeName = utf8("Code");
+        write(() -> {
+            methods.writeShort(access);
+            methods.writeShort(nameIndex);
+            methods.writeShort(descriptorIndex);
+            methods.writeShort(1);
+            methods.writeShort(codeName);
+            // max_stack + max_locals + code_length + code + exception_table_length + attributes_count
+            methods.writeInt(2 + 2 + 4 + code.length + 2 + 2);
+            methods.writeShort(maxStack);
+            methods.writeShort(maxLocals);
+            methods.writeInt(code.length);
+            methods.write(code);
+            methods.writeShort(0);
+            methods.writeShort(0);
+        });
+        methodCount++;
+    }
+
+    byte[] toByteArray() {
+        var bytes = new ByteArrayOutputStream();
+        var out = new DataOutputStream(bytes);
+        write(() -> {
+            out.writeInt(MAGIC);
+            out.writeShort(0);
+            out.writeShort(MAJOR_VERSION);
+            out.writeShort(poolCount);
+            poolBytes.writeTo(out);
+            out.writeShort(access);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            // interfaces, fields
+            out.writeShort(0);
+            out.writeShort(0);
+            out.writeShort(methodCount);
+            methodBytes.writeTo(out);
+            // attributes
+            out.writeShort(0);
+        });
+        return bytes.toByteArray();
+    }
+
+    private interface Writer {
+        void write() throws IOException;
+    }
+
+    private int constant(String key, Writer writer) {
+        var index = poolIndex.get(key);
+        if (index != null) {
+            return index;
+        }
+        write(writer);
+        poolIndex.put(key, poolCount);
+        return poolCount++;
+    }
+
+    private static void write(Writer writer) {
+        try {
+            writer.write();
+        } catch (IOException e) {
+            // 只写内存，不会发生
+            throw new UncheckedIOException(e);
+        }
+    }
+}
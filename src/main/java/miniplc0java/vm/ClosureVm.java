@@ -0,0 +1,105 @@
+package miniplc0java.vm;
+
+import java.io.PrintStream;
+import java.util.List;
+
+import miniplc0java.instruction.Instruction;
+
+/**
+ * 把每条指令预先编译成一个闭包再执行。
+ * 栈深度在编译时就是确定的（见 StackDepth），所以闭包里直接捕获要读写的栈位置和常量，
+ * 执行时既不用解码操作码，也不用维护栈指针，只是依次调用闭包。
+ * 和 JitVm 相比不用生成类，启动开销小；程序不合法时同样退回到 MiniVm
+ */
+public class ClosureVm implements Engine {
+    /**
+     * 编译好的一条指令
+     */
+    @FunctionalInterface
+    private interface Node {
+        void exec(int[] stack);
+    }
+
+    private final PrintStream out;
+    /** 编译结果，程序不合法时为 null */
+    private final Node[] nodes;
+    private final int stackSize;
+    private final Engine interpreter;
+
+    public ClosureVm(List<Instruction> instructions, PrintStream out) {
+        this.out = out;
+        instructions = Instruction.expandAll(instructions);
+        var depth = StackDepth.of(instructions);
+        if (depth == null) {
+            this.nodes = null;
+            this.stackSize = 0;
+            this.interpreter = new MiniVm(instructions, out);
+        } else {
+            this.nodes = compile(instructions, depth);
+            this.stackSize = depth.max;
+            this.interpreter = null;
+        }
+    }
+
+    public ClosureVm(List<Instruction> instructions) {
+        this(instructions, System.out);
+    }
+
+    @Override
+    public void Run() {
+        if (interpreter != null) {
+            interpreter.Run();
+            return;
+        }
+        final var stack = new int[stackSize];
+        for (var node : nodes) {
+            node.exec(stack);
+        }
+    }
+
+    private Node[] compile(List<Instruction> instructions, StackDepth depth) {
+        var nodes = new Node[instructions.size()];
+        int i = 0;
+        for (var instruction : instructions) {
+            nodes[i] = compile(instruction, depth.before[i]);
+            i++;
+        }
+        return nodes;
+    }
+
+    /**
+     * @param instruction 指令
+     * @param sp          执行这条指令前的栈深度
+     */
+    private Node compile(Instruction instruction, int sp) {
+        final int x = instruction.getX();
+        // 栈顶元素的位置
+        final int top = sp - 1;
+        final int below = sp - 2;
+        switch (instruction.getOpt()) {
+            case LIT:
+                return stack -> stack[sp] = x;
+            case LOD:
+                return stack -> stack[sp] = stack[x];
+            case STO:
+                return stack -> stack[x] = stack[top];
+            case ADD:
+                return stack -> stack[below] = stack[below] + stack[top];
+            case SUB:
+                return stack -> stack[below] = stack[below] - stack[top];
+            case MUL:
+                return stack -> stack[below] = stack[below] * stack[top];
+            case DIV:
+                return stack -> stack[below] = stack[below] / stack[top];
+            case WRT:
+                final var out = this.out;
+                return stack -> {
+                    out.print(stack[top]);
+                    out.print('\n');
+                };
+            default:
+                // StackDepth 已经排除了其他指令
+                throw new IllegalStateException("Unexpected instruction " + instruction);
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package miniplc0java.vm;
+
+/**
+ * 执行指令序列的引擎，同一个引擎可以反复执行
+ */
+public interface Engine {
+    /**
+     * 从头执行一遍程序
+     */
+    void Run();
+}
@@ -0,0 +1,450 @@
+package miniplc0java.vm;
+
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Arrays;
+import java.util.List;
+
+import miniplc0java.instruction.Instruction;
+
+/**
+ * 把指令序列编译成 JVM 方法再执行，让 JVM 自己的 JIT 来优化。
+ * miniplc0 的程序没有跳转，每个栈位置在编译时都是确定的，所以栈上的第 k 个位置直接对应一个局部变量，
+ * LOD/STO 就是局部变量之间的赋值。
+ * <p>
+ * HotSpot 不编译超过 8000 字节的方法，所以程序被切成若干段，每段是一个不超过 CHUNK_LIMIT 字节的静态方法
+ * chunkN(int[], PrintStream)。段与段之间通过 int[] 传递栈：进入一段时把这段要读的位置从数组读进局部变量，
+ * 离开时把写过、并且还在栈上的位置写回数组。run(PrintStream) 依次调用各段。
+ * 生成的类通过 Lookup.defineHiddenClass 加载，不需要单独的类加载器。
+ * 程序不合法（比如出栈下溢）或者太大放不进一个类时，退回到 MiniVm 解释执行，两者的行为完全一致
+ */
+public class JitVm implements Engine {
+    private static final String CLASS_NAME = "miniplc0java/vm/JitCode";
+    private static final String METHOD_NAME = "run";
+    private static final String METHOD_DESCRIPTOR = "(Ljava/io/PrintStream;)V";
+    private static final String CHUNK_DESCRIPTOR = "([ILjava/io/PrintStream;)V";
+    /** 每段方法的字节码上限，低于 HotSpot 的 HugeMethodLimit（8000） */
+    static final int CHUNK_LIMIT = 7900;
+    /** 一条指令的字节码最多这么长（WRT 用 wide 形式） */
+    private static final int MAX_INSTRUCTION_LENGTH = 24;
+    /** 进入或离开一段时读写一个栈位置的字节码最多这么长 */
+    private static final int MAX_TRANSFER_LENGTH = 12;
+    /** 一个方法的字节码最多 65535 字节 */
+    private static final int MAX_CODE_LENGTH = 65535;
+    /** 局部变量表最多 65535 个位置 */
+    private static final int MAX_LOCALS = 65535;
+    /** 常量池最多 65535 项 */
+    private static final int MAX_POOL_SIZE = 65535;
+
+    // JVM 指令
+    private static final int ICONST_0 = 0x03;
+    private static final int BIPUSH = 0x10;
+    private static final int SIPUSH = 0x11;
+    private static final int LDC = 0x12;
+    private static final int LDC_W = 0x13;
+    private static final int ILOAD = 0x15;
+    private static final int ALOAD_0 = 0x2a;
+    private static final int ALOAD_1 = 0x2b;
+    private static final int IALOAD = 0x2e;
+    private static final int ISTORE = 0x36;
+    private static final int ASTORE_1 = 0x4c;
+    private static final int IASTORE = 0x4f;
+    private static final int IADD = 0x60;
+    private static final int ISUB = 0x64;
+    private static final int IMUL = 0x68;
+    private static final int IDIV = 0x6c;
+    private static final int RETURN = 0xb1;
+    private static final int INVOKEVIRTUAL = 0xb6;
+    private static final int INVOKESTATIC = 0xb8;
+    private static final int NEWARRAY = 0xbc;
+    private static final int T_INT = 10;
+    private static final int WIDE = 0xc4;
+
+    private final List<Instruction> instructions;
+    private final PrintStream out;
+
+    /** 编译结果，null 表示还没编译；编译失败时退回到 interpreter */
+    private MethodHandle method;
+    private int chunkCount = 0;
+    private Engine interpreter;
+
+    public JitVm(List<Instruction> instructions, PrintStream out) {
+        // 超级指令展开后再编译，JVM 的 JIT 自己会合并
+        this.instructions = Instruction.expandAll(instructions);
+        this.out = out;
+    }
+
+    public JitVm(List<Instruction> instructions) {
+        this(instructions, System.out);
+    }
+
+    /**
+     * 第一次执行时编译，之后重复执行同一个方法
+     */
+    @Override
+    public void Run() {
+        if (method == null && interpreter == null) {
+            var compiled = compile(instructions);
+            if (compiled != null) {
+                method = compiled.method;
+                chunkCount = compiled.chunks;
+            } else {
+                interpreter = new MiniVm(instructions, out);
+            }
+        }
+        if (interpreter != null) {
+            interpreter.Run();
+            return;
+        }
+        try {
+            method.invokeExact(out);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            // 生成的方法不会抛出受检异常
+            throw new Error(e);
+        }
+    }
+
+    /**
+     * @return 编译出的段数；还没执行或者退回到解释执行时为 0
+     */
+    public int getChunkCount() {
+        return chunkCount;
+    }
+
+    /**
+     * 编译结果
+     */
+    static final class Compiled {
+        final MethodHandle method;
+        final int chunks;
+
+        Compiled(MethodHandle method, int chunks) {
+            this.method = method;
+            this.chunks = chunks;
+        }
+    }
+
+    /**
+     * 把指令序列编译成静态方法 void run(PrintStream) 和它调用的各段
+     *
+     * @param instructions 指令序列
+     * @return 编译结果；程序不合法或者太大时返回 null
+     */
+    static Compiled compile(List<Instruction> instructions) {
+        var depth = StackDepth.of(instructions);
+        if (depth == null || depth.max + 2 > MAX_LOCALS) {
+            return null;
+        }
+        var writer = new ClassFileWriter(CLASS_NAME, "java/lang/Object",
+                ClassFileWriter.ACC_PUBLIC | ClassFileWriter.ACC_FINAL | ClassFileWriter.ACC_SUPER);
+        var chunks = new ChunkBuilder(writer, depth);
+        int n = instructions.size();
+        int chunkCount = 0;
+        int start = 0;
+        while (start < n) {
+            var chunk = chunks.build(instructions, start);
+            if (chunk == null) {
+                return null;
+            }
+            writer.addMethod(ClassFileWriter.ACC_PUBLIC | ClassFileWriter.ACC_STATIC, "chunk" + chunkCount,
+                    CHUNK_DESCRIPTOR, 3, depth.max + 2, chunk);
+            chunkCount++;
+            start = chunks.end;
+        }
+
+        // run：分配栈数组，依次调用各段
+        var run = new Code(writer);
+        run.pushInt(depth.max);
+        run.op(NEWARRAY);
+        run.op(T_INT);
+        run.op(ASTORE_1);
+        for (int i = 0; i < chunkCount; i++) {
+            run.op(ALOAD_1);
+            run.op(ALOAD_0);
+            run.invoke(INVOKESTATIC, writer.methodRef(CLASS_NAME, "chunk" + i, CHUNK_DESCRIPTOR));
+        }
+        run.op(RETURN);
+        if (run.length() > MAX_CODE_LENGTH || writer.poolSize() > MAX_POOL_SIZE) {
+            return null;
+        }
+        writer.addMethod(ClassFileWriter.ACC_PUBLIC | ClassFileWriter.ACC_STATIC, METHOD_NAME, METHOD_DESCRIPTOR,
+                2, 2, run.toByteArray());
+
+        try {
+            var lookup = MethodHandles.lookup().defineHiddenClass(writer.toByteArray(), true);
+            var method = lookup.findStatic(lookup.lookupClass(), METHOD_NAME,
+                    MethodType.methodType(void.class, PrintStream.class));
+            return new Compiled(method, chunkCount);
+        } catch (ReflectiveOperationException | LinkageError e) {
+            // 生成的类没通过校验，交给解释器
+            return null;
+        }
+    }
+
+    /**
+     * 生成一段的方法体。段里栈上的第 k 个位置是局部变量 k + 2，局部变量 0 是栈数组，1 是输出流
+     */
+    private static final class ChunkBuilder {
+        private final ClassFileWriter writer;
+        private final StackDepth depth;
+        private final int printInt;
+        private final int printChar;
+
+        /** 这一段里第一次访问每个位置时的段号加一，用来判断是不是这一段第一次访问 */
+        private final int[] seen;
+        /** 这一段里是否先写了这个位置（先写的位置不用从数组读进来） */
+        private final boolean[] written;
+        private int chunkId = 0;
+        /** 上一次 build 结束的位置 */
+        int end;
+
+        ChunkBuilder(ClassFileWriter writer, StackDepth depth) {
+            this.writer = writer;
+            this.depth = depth;
+            this.printInt = writer.methodRef("java/io/PrintStream", "print", "(I)V");
+            this.printChar = writer.methodRef("java/io/PrintStream", "print", "(C)V");
+            this.seen = new int[depth.max];
+            this.written = new boolean[depth.max];
+        }
+
+        /**
+         * 从 start 开始生成一段，直到字节码快到 CHUNK_LIMIT 为止，结束位置记在 end
+         *
+         * @return 方法体；遇到不支持的指令或者常量池放不下时返回 null
+         */
+        byte[] build(List<Instruction> instructions, int start) {
+            chunkId++;
+            var body = new Code(writer);
+            // 要从数组读进来的位置和写过的位置，都按第一次访问的顺序
+            var reads = new int[16];
+            int readCount = 0;
+            var writes = new int[16];
+            int writeCount = 0;
+            int i = start;
+            for (; i < instructions.size(); i++) {
+                if (i > start && body.length() + MAX_INSTRUCTION_LENGTH
+                        + MAX_TRANSFER_LENGTH * (readCount + writeCount + 3) > CHUNK_LIMIT) {
+                    break;
+                }
+                var instruction = instructions.get(i);
+                // 栈上第 k 个位置（从 0 开始）是局部变量 k + 2，d 是执行前的栈深度
+                int d = depth.before[i];
+                int x = instruction.getX();
+                int[] read;
+                int target;
+                switch (instruction.getOpt()) {
+                    case LIT:
+                        read = new int[0];
+                        target = d;
+                        break;
+                    case LOD:
+                        read = new int[] { x };
+                        target = d;
+                        break;
+                    case STO:
+                        read = new int[] { d - 1 };
+                        target = x;
+                        break;
+                    case ADD:
+                    case SUB:
+                    case MUL:
+                    case DIV:
+                        read = new int[] { d - 2, d - 1 };
+                        target = d - 2;
+                        break;
+                    case WRT:
+                        read = new int[] { d - 1 };
+                        target = -1;
+                        break;
+                    default:
+                        return null;
+                }
+                for (int k : read) {
+                    if (seen[k] != chunkId) {
+                        seen[k] = chunkId;
+                        written[k] = false;
+                        if (readCount == reads.length) {
+                            reads = Arrays.copyOf(reads, readCount * 2);
+                        }
+                        reads[readCount++] = k;
+                    }
+                }
+                if (target >= 0 && (seen[target] != chunkId || !written[target])) {
+                    if (seen[target] != chunkId) {
+                        seen[target] = chunkId;
+                    }
+                    written[target] = true;
+                    if (writeCount == writes.length) {
+                        writes = Arrays.copyOf(writes, writeCount * 2);
+                    }
+                    writes[writeCount++] = target;
+                }
+                switch (instruction.getOpt()) {
+                    case LIT:
+                        body.pushInt(x);
+                        body.local(ISTORE, d + 2);
+                        break;
+                    case LOD:
+                        body.local(ILOAD, x + 2);
+                        body.local(ISTORE, d + 2);
+                        break;
+                    case STO:
+                        body.local(ILOAD, d + 1);
+                        body.local(ISTORE, x + 2);
+                        break;
+                    case ADD:
+                        body.binary(IADD, d + 1);
+                        break;
+                    case SUB:
+                        body.binary(ISUB, d + 1);
+                        break;
+                    case MUL:
+                        body.binary(IMUL, d + 1);
+                        break;
+                    case DIV:
+                        body.binary(IDIV, d + 1);
+                        break;
+                    default:
+                        // WRT
+                        body.op(ALOAD_1);
+                        body.local(ILOAD, d + 1);
+                        body.invoke(INVOKEVIRTUAL, printInt);
+                        body.op(ALOAD_1);
+                        body.pushInt('\n');
+                        body.invoke(INVOKEVIRTUAL, printChar);
+                        break;
+                }
+                if (writer.poolSize() > MAX_POOL_SIZE) {
+                    return null;
+                }
+            }
+            end = i;
+            int exitDepth = i < instructions.size() ? depth.before[i] : Integer.MAX_VALUE;
+
+            var code = new Code(writer);
+            // 进入：读进这一段要读、但在读之前没有写过的位置
+            for (int r = 0; r < readCount; r++) {
+                int k = reads[r];
+                code.op(ALOAD_0);
+                code.pushInt(k);
+                code.op(IALOAD);
+                code.local(ISTORE, k + 2);
+            }
+            code.append(body);
+            // 离开：写回还在栈上的位置，已经出栈的位置之后一定会先被写
+            if (i < instructions.size()) {
+                for (int w = 0; w < writeCount; w++) {
+                    int k = writes[w];
+                    if (k < exitDepth) {
+                        code.op(ALOAD_0);
+                        code.pushInt(k);
+                        code.local(ILOAD, k + 2);
+                        code.op(IASTORE);
+                    }
+                }
+            }
+            code.op(RETURN);
+            return code.toByteArray();
+        }
+    }
+
+    /**
+     * 方法体的字节码
+     */
+    private static final class Code {
+        private final ClassFileWriter writer;
+        private byte[] bytes = new byte[256];
+        private int length = 0;
+
+        Code(ClassFileWriter writer) {
+            this.writer = writer;
+        }
+
+        int length() {
+            return length;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(bytes, length);
+        }
+
+        void op(int opcode) {
+            u1(opcode);
+        }
+
+        /**
+         * 把整数常量压到操作数栈上，按大小选最短的指令
+         */
+        void pushInt(int value) {
+            if (value >= -1 && value <= 5) {
+                u1(ICONST_0 + value);
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                u1(BIPUSH);
+                u1(value);
+            } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                u1(SIPUSH);
+                u2(value);
+            } else {
+                int index = writer.integer(value);
+                if (index <= 0xff) {
+                    u1(LDC);
+                    u1(index);
+                } else {
+                    u1(LDC_W);
+                    u2(index);
+                }
+            }
+        }
+
+        /**
+         * iload/istore 局部变量，超过 255 时用 wide 形式
+         */
+        void local(int opcode, int index) {
+            if (index <= 0xff) {
+                u1(opcode);
+                u1(index);
+            } else {
+                u1(WIDE);
+                u1(opcode);
+                u2(index);
+            }
+        }
+
+        /**
+         * 栈顶两个位置是局部变量 d - 1 和 d，结果写回 d - 1
+         */
+        void binary(int opcode, int d) {
+            local(ILOAD, d - 1);
+            local(ILOAD, d);
+            u1(opcode);
+            local(ISTORE, d - 1);
+        }
+
+        void invoke(int opcode, int methodRef) {
+            u1(opcode);
+            u2(methodRef);
+        }
+
+        void append(Code other) {
+            for (int k = 0; k < other.length; k++) {
+                u1(other.bytes[k]);
+            }
+        }
+
+        private void u1(int value) {
+            if (length == bytes.length) {
+                bytes = Arrays.copyOf(bytes, length * 2);
+            }
+            bytes[length++] = (byte) value;
+        }
+
+        private void u2(int value) {
+            u1(value >> 8);
+            u1(value);
+        }
+    }
+}
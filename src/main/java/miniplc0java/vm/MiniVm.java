@@ -1,13 +1,15 @@
 package miniplc0java.vm;
 
 import java.io.PrintStream;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
+import miniplc0java.instruction.Bytecode;
 import miniplc0java.instruction.Instruction;
 
-public class MiniVm {
-    private List<Instruction> instructions;
+public class MiniVm implements Engine {
+    /** 编码后的指令，见 Bytecode */
+    private int[] code;
     private PrintStream out;
 
     /**
@@ -15,89 +17,184 @@ public class MiniVm {
      * @param out
      */
     public MiniVm(List<Instruction> instructions, PrintStream out) {
-        this.instructions = instructions;
-        this.out = out;
+        this(Bytecode.encode(instructions), out);
     }
 
     public MiniVm(List<Instruction> instructions) {
-        this.instructions = instructions;
-        this.out = System.out;
+        this(instructions, System.out);
+    }
+
+    /**
+     * @param code 用 Bytecode.encode 编码的指令
+     * @param out
+     */
+    public MiniVm(int[] code, PrintStream out) {
+        this.code = code;
+        this.out = out;
     }
 
-    private ArrayList<Integer> stack = new ArrayList<>();
+    /**
+     * 没有程序的虚拟机，只用 execute 逐条执行收到的指令
+     *
+     * @param out
+     */
+    public MiniVm(PrintStream out) {
+        this(new int[0], out);
+    }
 
-    private int ip;
+    // 操作数栈，sp 指向下一个空位。Run() 每次从空栈开始，execute 接着之前留下的栈
+    private int[] stack = new int[256];
+    private int sp = 0;
 
+    // 解释循环：ip、sp 和栈都放在局部变量里，方便 JIT 分配到寄存器
+    @Override
     public void Run() {
-        ip = 0;
-        while (ip < instructions.size()) {
-            var inst = instructions.get(ip);
-            RunStep(inst);
-            ip++;
+        final int[] code = this.code;
+        final PrintStream out = this.out;
+        int[] stack = this.stack;
+        int sp = 0;
+        for (int ip = 0; ip < code.length; ip += 2) {
+            // 一条指令最多入栈一个元素
+            if (sp == stack.length) {
+                stack = Arrays.copyOf(stack, sp * 2);
+            }
+            sp = step(code[ip], code[ip + 1], stack, sp, out);
         }
+        this.stack = stack;
     }
 
-    private Integer pop() {
-        var val = this.stack.get(this.stack.size() - 1);
-        this.stack.remove(this.stack.size() - 1);
-        return val;
+    /**
+     * 执行一条指令，接着之前 execute 留下的栈继续执行。边分析边执行时用它
+     *
+     * @param instruction 指令
+     */
+    public void execute(Instruction instruction) {
+        if (sp == stack.length) {
+            stack = Arrays.copyOf(stack, sp * 2);
+        }
+        sp = step(instruction.getOpt().ordinal(), instruction.getX(), stack, sp, out);
     }
 
-    private void push(Integer i) {
-        this.stack.add(i);
+    /**
+     * 执行一条指令，Run() 和 execute 共用
+     *
+     * @param opcode 操作码，见 Bytecode
+     * @param x      操作数
+     * @param stack  操作数栈，调用方保证至少还有一个空位
+     * @param sp     执行前的栈顶
+     * @param out    输出
+     * @return 执行后的栈顶
+     */
+    private static int step(int opcode, int x, int[] stack, int sp, PrintStream out) {
+        switch (opcode) {
+            case Bytecode.LIT:
+                stack[sp++] = x;
+                break;
+            case Bytecode.LOD:
+                checkOffset(x, sp);
+                stack[sp] = stack[x];
+                sp++;
+                break;
+            case Bytecode.STO:
+                sp--;
+                checkOffset(x, sp);
+                stack[x] = stack[sp];
+                break;
+            case Bytecode.ADD:
+                sp--;
+                stack[sp - 1] = stack[sp - 1] + stack[sp];
+                break;
+            case Bytecode.SUB:
+                sp--;
+                stack[sp - 1] = stack[sp - 1] - stack[sp];
+                break;
+            case Bytecode.MUL:
+                sp--;
+                stack[sp - 1] = stack[sp - 1] * stack[sp];
+                break;
+            case Bytecode.DIV:
+                sp--;
+                stack[sp - 1] = stack[sp - 1] / stack[sp];
+                break;
+            case Bytecode.WRT:
+                sp--;
+                // print(int) 不会装箱，printf 每次都要装箱
+                out.print(stack[sp]);
+                out.print('\n');
+                break;
+            case Bytecode.ILL:
+                throw new Error("Illegal instruction");
+            default:
+                stepExtended(opcode, x, stack, sp, out);
+                break;
+        }
+        return sp;
     }
 
-    private void RunStep(Instruction inst) {
-        switch (inst.getOpt()) {
-            case ADD: {
-                var a = pop();
-                var b = pop();
-                push(a + b);
-            }
+    /**
+     * 执行一条超级指令或扩展指令，它们都不改变栈的高度。
+     * 和 step 分开是为了让两个方法都小到能被 JIT 内联进解释循环
+     */
+    private static void stepExtended(int opcode, int x, int[] stack, int sp, PrintStream out) {
+        switch (opcode) {
+            // 超级指令，和展开后的两条指令效果一样
+            case Bytecode.LITADD:
+                stack[sp - 1] = stack[sp - 1] + x;
                 break;
-            case DIV: {
-                var b = pop();
-                var a = pop();
-                push(a / b);
-            }
+            case Bytecode.LITSUB:
+                stack[sp - 1] = stack[sp - 1] - x;
                 break;
-            case ILL: {
-                throw new Error("Illegal instruction");
-            }
-            case LIT: {
-                push(inst.getX());
-            }
+            case Bytecode.LITMUL:
+                stack[sp - 1] = stack[sp - 1] * x;
                 break;
-            case LOD: {
-                var x = stack.get(inst.getX());
-                push(x);
-            }
+            case Bytecode.LITDIV:
+                stack[sp - 1] = stack[sp - 1] / x;
                 break;
-            case MUL: {
-                var b = pop();
-                var a = pop();
-                push(a * b);
-            }
+            case Bytecode.LODADD:
+                checkOffset(x, sp);
+                stack[sp - 1] = stack[sp - 1] + stack[x];
                 break;
-            case STO: {
-                var x = pop();
-                stack.set(inst.getX(), x);
-            }
+            case Bytecode.LODSUB:
+                checkOffset(x, sp);
+                stack[sp - 1] = stack[sp - 1] - stack[x];
                 break;
-            case SUB: {
-                var b = pop();
-                var a = pop();
-                push(a - b);
-            }
+            case Bytecode.LODMUL:
+                checkOffset(x, sp);
+                stack[sp - 1] = stack[sp - 1] * stack[x];
+                break;
+            case Bytecode.LODDIV:
+                checkOffset(x, sp);
+                stack[sp - 1] = stack[sp - 1] / stack[x];
+                break;
+            case Bytecode.LODWRT:
+                checkOffset(x, sp);
+                out.print(stack[x]);
+                out.print('\n');
+                break;
+            // 扩展指令
+            case Bytecode.SHL:
+                stack[sp - 1] = stack[sp - 1] << x;
+                break;
+            case Bytecode.SAR: {
+                // 算术右移向负无穷取整，负数先加上 2^x - 1，结果和除法一样向零取整
+                int value = stack[sp - 1];
+                stack[sp - 1] = (value + ((value >> 31) & ((1 << x) - 1))) >> x;
                 break;
-            case WRT: {
-                var b = pop();
-                out.printf("%d\n", b);
             }
+            case Bytecode.NEG:
+                stack[sp - 1] = -stack[sp - 1];
                 break;
             default:
                 break;
+        }
+    }
 
+    /**
+     * 检查栈偏移是否在当前栈内
+     */
+    static void checkOffset(int offset, int sp) {
+        if (offset < 0 || offset >= sp) {
+            throw new IndexOutOfBoundsException("Stack offset " + offset + " out of bounds for stack size " + sp);
         }
     }
 }
@@ -0,0 +1,74 @@
+package miniplc0java.vm;
+
+import java.util.List;
+
+import miniplc0java.instruction.Instruction;
+
+/**
+ * 指令序列的静态栈深度。miniplc0 的指令里没有跳转，每条指令执行前的栈深度在编译时就是确定的，
+ * 所以栈上的每个位置都可以直接对应到一个局部变量或者寄存器
+ */
+final class StackDepth {
+    /** 第 i 条指令执行前的栈深度 */
+    final int[] before;
+    /** 执行过程中的最大栈深度 */
+    final int max;
+
+    private StackDepth(int[] before, int max) {
+        this.before = before;
+        this.max = max;
+    }
+
+    /**
+     * 分析指令序列的栈深度
+     *
+     * @param instructions 指令序列
+     * @return 分析结果；如果程序会出栈下溢、访问不存在的栈位置或者执行非法指令，返回 null
+     */
+    static StackDepth of(List<Instruction> instructions) {
+        var before = new int[instructions.size()];
+        int depth = 0;
+        int max = 0;
+        int i = 0;
+        for (var instruction : instructions) {
+            before[i++] = depth;
+            int x = instruction.getX();
+            switch (instruction.getOpt()) {
+                case LIT:
+                    depth++;
+                    break;
+                case LOD:
+                    if (x < 0 || x >= depth) {
+                        return null;
+                    }
+                    depth++;
+                    break;
+                case STO:
+                    if (x < 0 || x >= depth - 1) {
+                        return null;
+                    }
+                    depth--;
+                    break;
+                case ADD:
+                case SUB:
+                case MUL:
+                case DIV:
+                    if (depth < 2) {
+                        return null;
+                    }
+                    depth--;
+                    break;
+                case WRT:
+                    if (depth < 1) {
+                        return null;
+                    }
+                    depth--;
+                    break;
+                default:
+                    return null;
+            }
+            max = Math.max(max, depth);
+        }
+        return new StackDepth(before, max);
+    }
+}
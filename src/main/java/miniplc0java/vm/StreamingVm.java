@@ -0,0 +1,23 @@
+package miniplc0java.vm;
+
+import java.io.PrintStream;
+
+import miniplc0java.instruction.Instruction;
+import miniplc0java.instruction.InstructionSink;
+
+/**
+ * 边分析边执行的虚拟机：程序没有跳转，每收到一条指令就可以立刻执行它，不需要保存整个程序。
+ * 每条指令交给 MiniVm.execute 执行，语义和 MiniVm 完全相同，运行时错误在执行到出错的指令时抛出
+ */
+public class StreamingVm implements InstructionSink {
+    private final MiniVm vm;
+
+    public StreamingVm(PrintStream out) {
+        this.vm = new MiniVm(out);
+    }
+
+    @Override
+    public void emit(Instruction instruction) {
+        vm.execute(instruction);
+    }
+}
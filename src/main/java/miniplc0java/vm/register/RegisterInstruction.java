@@ -0,0 +1,65 @@
+package miniplc0java.vm.register;
+
+import java.util.Objects;
+
+/**
+ * 三地址的寄存器指令，操作数都是寄存器编号；常量也放在寄存器里，见 RegisterProgram
+ */
+public class RegisterInstruction {
+    private final RegisterOperation opt;
+    /** 目标寄存器，WRT 没有目标寄存器，为 -1 */
+    private final int dst;
+    private final int a;
+    /** 第二个操作数，MOV 和 WRT 没有，为 -1 */
+    private final int b;
+
+    public RegisterInstruction(RegisterOperation opt, int dst, int a, int b) {
+        this.opt = opt;
+        this.dst = dst;
+        this.a = a;
+        this.b = b;
+    }
+
+    public RegisterOperation getOpt() {
+        return opt;
+    }
+
+    public int getDst() {
+        return dst;
+    }
+
+    public int getA() {
+        return a;
+    }
+
+    public int getB() {
+        return b;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (o == null || getClass() != o.getClass())
+            return false;
+        RegisterInstruction that = (RegisterInstruction) o;
+        return opt == that.opt && dst == that.dst && a == that.a && b == that.b;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(opt, dst, a, b);
+    }
+
+    @Override
+    public String toString() {
+        switch (this.opt) {
+            case MOV:
+                return String.format("%s r%d, r%d", this.opt, this.dst, this.a);
+            case WRT:
+                return String.format("%s r%d", this.opt, this.a);
+            default:
+                return String.format("%s r%d, r%d, r%d", this.opt, this.dst, this.a, this.b);
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package miniplc0java.vm.register;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import miniplc0java.instruction.Instruction;
+
+/**
+ * 把栈指令翻译成寄存器指令。
+ * <p>
+ * 栈上的第 p 个位置对应寄存器 p。翻译时模拟一个抽象的栈，每个位置记录它的值现在在哪个寄存器里：
+ * 可能就是它自己的寄存器，也可能是更低位置的寄存器（LOD 得到的别名），或者是一个常量（记为 ~常量序号）。
+ * 这样 LIT 和 LOD 不产生指令，运算直接从别名或常量读操作数；
+ * STO 如果紧跟在算出这个值的指令后面，就直接改这条指令的目标寄存器。
+ * 所以 LOD a; LOD b; ADD; STO c 只产生一条 ADD c, a, b
+ */
+public final class RegisterLowering {
+    /** 每条指令占 4 个 int：操作、目标、操作数 a、操作数 b */
+    private int[] code = new int[64];
+    private int length = 0;
+
+    /** 栈上每个位置的值所在的寄存器，负数 ~k 表示第 k 个常量 */
+    private int[] desc = new int[16];
+    private int depth = 0;
+    private int maxDepth = 0;
+
+    private int[] constants = new int[16];
+    private int constantCount = 0;
+    private final HashMap<Integer, Integer> constantIndex = new HashMap<>();
+
+    private RegisterLowering() {
+    }
+
+    /**
+     * @param instructions 栈指令，可以包含超级指令
+     * @return 寄存器程序；如果程序会出栈下溢、访问不存在的栈位置或者执行非法指令，返回 null
+     */
+    public static RegisterProgram lower(List<Instruction> instructions) {
+        var lowering = new RegisterLowering();
+        for (var instruction : Instruction.expandAll(instructions)) {
+            if (!lowering.lower(instruction)) {
+                return null;
+            }
+        }
+        return lowering.finish();
+    }
+
+    private boolean lower(Instruction instruction) {
+        int x = instruction.getX();
+        switch (instruction.getOpt()) {
+            case LIT:
+                push(constant(x));
+                return true;
+            case LOD:
+                if (x < 0 || x >= depth) {
+                    return false;
+                }
+                push(desc[x]);
+                return true;
+            case STO:
+                if (x < 0 || x >= depth - 1) {
+                    return false;
+                }
+                store(x);
+                return true;
+            case ADD:
+                return binary(RegisterOperation.ADD);
+            case SUB:
+                return binary(RegisterOperation.SUB);
+            case MUL:
+                return binary(RegisterOperation.MUL);
+            case DIV:
+                return binary(RegisterOperation.DIV);
+            case WRT:
+                if (depth < 1) {
+                    return false;
+                }
+                depth--;
+                emit(RegisterOperation.WRT, -1, desc[depth], -1);
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private void store(int x) {
+        int top = --depth;
+        int value = desc[top];
+        if (value < 0) {
+            // 常量不用写进寄存器，只记下来；寄存器 x 里的旧值还在，指向它的别名依然有效
+            desc[x] = value;
+            return;
+        }
+        if (value == x) {
+            // 寄存器 x 里本来就是这个值
+            desc[x] = x;
+            return;
+        }
+        int last = length - 4;
+        if (value == top && last >= 0 && code[last + 1] == top) {
+            // 栈顶的值刚刚由上一条指令算出来，让它直接写到 x。
+            // 先把上一条指令拿出来，保证别名在 x 被改写之前复制走
+            var instruction = Arrays.copyOfRange(code, last, length);
+            length = last;
+            materialize(x);
+            emit(RegisterOperation.values()[instruction[0]], x, instruction[2], instruction[3]);
+        } else {
+            materialize(x);
+            emit(RegisterOperation.MOV, x, value, -1);
+        }
+        desc[x] = x;
+    }
+
+    /**
+     * 寄存器 x 要被改写了，把还指向它的别名复制到各自的寄存器里
+     */
+    private void materialize(int x) {
+        for (int p = 0; p < depth; p++) {
+            if (p != x && desc[p] == x) {
+                emit(RegisterOperation.MOV, p, x, -1);
+                desc[p] = p;
+            }
+        }
+    }
+
+    private boolean binary(RegisterOperation opt) {
+        if (depth < 2) {
+            return false;
+        }
+        int b = desc[--depth];
+        int top = depth - 1;
+        int a = desc[top];
+        // 除以 0 要留到运行时报错，不折叠
+        if (a < 0 && b < 0 && !(opt == RegisterOperation.DIV && constants[~b] == 0)) {
+            desc[top] = constant(fold(opt, constants[~a], constants[~b]));
+            return true;
+        }
+        // 更低的位置不会是寄存器 top 的别名，可以直接写
+        emit(opt, top, a, b);
+        desc[top] = top;
+        return true;
+    }
+
+    private static int fold(RegisterOperation opt, int a, int b) {
+        switch (opt) {
+            case ADD:
+                return a + b;
+            case SUB:
+                return a - b;
+            case MUL:
+                return a * b;
+            case DIV:
+                return a / b;
+            default:
+                throw new IllegalArgumentException(opt.toString());
+        }
+    }
+
+    private void push(int value) {
+        if (depth == desc.length) {
+            desc = Arrays.copyOf(desc, depth * 2);
+        }
+        desc[depth++] = value;
+        maxDepth = Math.max(maxDepth, depth);
+    }
+
+    /**
+     * @return ~常量序号
+     */
+    private int constant(int value) {
+        var index = constantIndex.get(value);
+        if (index == null) {
+            if (constantCount == constants.length) {
+                constants = Arrays.copyOf(constants, constantCount * 2);
+            }
+            constants[constantCount] = value;
+            index = constantCount++;
+            constantIndex.put(value, index);
+        }
+        return ~index;
+    }
+
+    private void emit(RegisterOperation opt, int dst, int a, int b) {
+        if (length == code.length) {
+            code = Arrays.copyOf(code, length * 2);
+        }
+        code[length++] = opt.ordinal();
+        code[length++] = dst;
+        code[length++] = a;
+        code[length++] = b;
+    }
+
+    /**
+     * 常量寄存器排在所有栈位置后面，把 ~k 换成真正的寄存器编号
+     */
+    private RegisterProgram finish() {
+        int base = maxDepth;
+        var operations = RegisterOperation.values();
+        var instructions = new ArrayList<RegisterInstruction>(length / 4);
+        for (int i = 0; i < length; i += 4) {
+            var opt = operations[code[i]];
+            int a = register(base, code[i + 2]);
+            // MOV 和 WRT 没有第二个操作数，不能把 -1 当成 ~0
+            int b = opt == RegisterOperation.MOV || opt == RegisterOperation.WRT ? -1 : register(base, code[i + 3]);
+            instructions.add(new RegisterInstruction(opt, code[i + 1], a, b));
+        }
+        return new RegisterProgram(instructions, base, Arrays.copyOf(constants, constantCount));
+    }
+
+    private static int register(int base, int operand) {
+        return operand < 0 ? base + ~operand : operand;
+    }
+}
@@ -0,0 +1,19 @@
+package miniplc0java.vm.register;
+
+/**
+ * 寄存器指令的操作
+ */
+public enum RegisterOperation {
+    /** dst = a */
+    MOV,
+    /** dst = a + b */
+    ADD,
+    /** dst = a - b */
+    SUB,
+    /** dst = a * b */
+    MUL,
+    /** dst = a / b */
+    DIV,
+    /** 输出 a */
+    WRT
+}
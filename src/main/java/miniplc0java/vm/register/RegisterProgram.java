@@ -0,0 +1,57 @@
+package miniplc0java.vm.register;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 寄存器程序。寄存器文件分成两部分：
+ * 前 getConstantBase() 个是栈位置对应的寄存器，后面的是常量寄存器，执行前装入 getConstants() 里的值，之后不会被写入
+ */
+public class RegisterProgram {
+    private final List<RegisterInstruction> instructions;
+    private final int constantBase;
+    private final int[] constants;
+
+    public RegisterProgram(List<RegisterInstruction> instructions, int constantBase, int[] constants) {
+        this.instructions = Collections.unmodifiableList(instructions);
+        this.constantBase = constantBase;
+        this.constants = constants;
+    }
+
+    public List<RegisterInstruction> getInstructions() {
+        return instructions;
+    }
+
+    /**
+     * @return 第一个常量寄存器的编号
+     */
+    public int getConstantBase() {
+        return constantBase;
+    }
+
+    /**
+     * @return 常量寄存器的初始值，不要修改
+     */
+    public int[] getConstants() {
+        return constants;
+    }
+
+    /**
+     * @return 寄存器总数
+     */
+    public int getRegisterCount() {
+        return constantBase + constants.length;
+    }
+
+    @Override
+    public String toString() {
+        var builder = new StringBuilder();
+        for (int i = 0; i < constants.length; i++) {
+            builder.append(String.format("r%d = %d\n", constantBase + i, constants[i]));
+        }
+        for (var instruction : instructions) {
+            builder.append(instruction).append('\n');
+        }
+        return builder.toString();
+    }
+}
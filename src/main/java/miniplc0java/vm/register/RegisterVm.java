@@ -0,0 +1,117 @@
+package miniplc0java.vm.register;
+
+import java.io.PrintStream;
+import java.util.List;
+
+import miniplc0java.instruction.Instruction;
+import miniplc0java.vm.Engine;
+import miniplc0java.vm.MiniVm;
+
+/**
+ * 执行寄存器程序的虚拟机。指令编码成 int 数组，每条指令占 4 个 int：操作、目标、操作数 a、操作数 b
+ */
+public class RegisterVm implements Engine {
+    // 操作码，和 RegisterOperation 的序号一致
+    private static final int MOV = 0;
+    private static final int ADD = 1;
+    private static final int SUB = 2;
+    private static final int MUL = 3;
+    private static final int DIV = 4;
+    private static final int WRT = 5;
+
+    static {
+        if (RegisterOperation.MOV.ordinal() != MOV || RegisterOperation.WRT.ordinal() != WRT) {
+            throw new Error("Register opcodes out of sync with RegisterOperation");
+        }
+    }
+
+    private final int[] code;
+    private final int[] constants;
+    private final int registerCount;
+    private final PrintStream out;
+    /** 程序没法翻译成寄存器指令时退回到栈式虚拟机 */
+    private final Engine interpreter;
+
+    public RegisterVm(RegisterProgram program, PrintStream out) {
+        this.code = encode(program.getInstructions());
+        this.constants = program.getConstants();
+        this.registerCount = program.getRegisterCount();
+        this.out = out;
+        this.interpreter = null;
+    }
+
+    /**
+     * 先把栈指令翻译成寄存器指令；程序不合法时用 MiniVm 执行，保证运行时错误一致
+     */
+    public RegisterVm(List<Instruction> instructions, PrintStream out) {
+        var program = RegisterLowering.lower(instructions);
+        if (program == null) {
+            this.code = null;
+            this.constants = null;
+            this.registerCount = 0;
+            this.interpreter = new MiniVm(instructions, out);
+        } else {
+            this.code = encode(program.getInstructions());
+            this.constants = program.getConstants();
+            this.registerCount = program.getRegisterCount();
+            this.interpreter = null;
+        }
+        this.out = out;
+    }
+
+    public RegisterVm(List<Instruction> instructions) {
+        this(instructions, System.out);
+    }
+
+    private static int[] encode(List<RegisterInstruction> instructions) {
+        var code = new int[instructions.size() * 4];
+        int i = 0;
+        for (var instruction : instructions) {
+            code[i++] = instruction.getOpt().ordinal();
+            code[i++] = instruction.getDst();
+            code[i++] = instruction.getA();
+            code[i++] = instruction.getB();
+        }
+        return code;
+    }
+
+    @Override
+    public void Run() {
+        if (interpreter != null) {
+            interpreter.Run();
+            return;
+        }
+        final int[] code = this.code;
+        final PrintStream out = this.out;
+        final int[] r = new int[registerCount];
+        System.arraycopy(constants, 0, r, registerCount - constants.length, constants.length);
+        for (int ip = 0; ip < code.length; ip += 4) {
+            int dst = code[ip + 1];
+            int a = code[ip + 2];
+            int b = code[ip + 3];
+            switch (code[ip]) {
+                case MOV:
+                    r[dst] = r[a];
+                    break;
+                case ADD:
+                    r[dst] = r[a] + r[b];
+                    break;
+                case SUB:
+                    r[dst] = r[a] - r[b];
+                    break;
+                case MUL:
+                    r[dst] = r[a] * r[b];
+                    break;
+                case DIV:
+                    r[dst] = r[a] / r[b];
+                    break;
+                case WRT:
+                    out.print(r[a]);
+                    out.print('\n');
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+}
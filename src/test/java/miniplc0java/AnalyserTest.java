@@ -3,6 +3,184 @@ package miniplc0java;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import miniplc0java.analyser.Analyser;
+import miniplc0java.ast.AstArena;
+import miniplc0java.ast.CodeGenerator;
+import miniplc0java.ast.NodeKind;
+import miniplc0java.error.CompileError;
+import miniplc0java.instruction.Instruction;
+import miniplc0java.instruction.Operation;
+import miniplc0java.instruction.PrintSink;
+import miniplc0java.tokenizer.StringIter;
+import miniplc0java.tokenizer.TokenBuffer;
+import miniplc0java.tokenizer.Tokenizer;
+import miniplc0java.vm.MiniVm;
+import miniplc0java.vm.StreamingVm;
+
 public class AnalyserTest {
 
+    private List<Instruction> analyse(String source) throws CompileError {
+        var input = ByteBuffer.wrap(source.getBytes(StandardCharsets.UTF_8));
+        return new Analyser(new Tokenizer(new StringIter(input))).analyse();
+    }
+
+    private List<Instruction> analyseAst(String source) throws CompileError {
+        var input = ByteBuffer.wrap(source.getBytes(StandardCharsets.UTF_8));
+        var ast = new Analyser(new Tokenizer(new StringIter(input))).analyseAst();
+        return new CodeGenerator(ast).generate();
+    }
+
+    @Test
+    public void testConstantFolding() throws CompileError {
+        var instructions = analyse("begin const k = -3; var a = 2 * 3 + k; print(-(k * 7)); print(a / (k + 3)); end");
+        // 常量不占栈位置，常数子表达式折叠成一条 LIT，除以 0 留到运行时
+        var expected = List.of(
+                new Instruction(Operation.LIT, 3),
+                new Instruction(Operation.LIT, 21),
+                new Instruction(Operation.WRT),
+                new Instruction(Operation.LOD, 0),
+                new Instruction(Operation.LIT, 0),
+                new Instruction(Operation.DIV),
+                new Instruction(Operation.WRT));
+        assertEquals(expected, instructions);
+    }
+
+    @Test
+    public void testAst() throws CompileError {
+        var sources = List.of(
+                "begin const k = -3; var a = 2 * 3 + k; print(-(k * 7)); print(a / (k + 3)); end",
+                "begin var a; var b = 1; var c = -b; a = 2; a = (a + b) * -(c - 2) / 4; ; print(a - -a); b = 5; end",
+                "begin var x = 1; x = -(-(x * (2 + 3))) + (x - x) * 0; print(x); end");
+        for (var source : sources) {
+            // 建语法树之后生成的代码和直接生成的完全一样
+            assertEquals(analyse(source), analyseAst(source));
+        }
+
+        // 生成代码时嵌套很深的表达式也不会栈溢出
+        int depth = 100000;
+        var ast = new AstArena();
+        int node = ast.literal(1);
+        for (int i = 0; i < depth; i++) {
+            node = ast.binary(NodeKind.ADD, ast.load(0), node);
+        }
+        ast.print(node);
+        assertEquals(2 * depth + 2, new CodeGenerator(ast).generate().size());
+    }
+
+    @Test
+    public void testDeepNesting() throws CompileError {
+        // 表达式分析不递归，括号嵌套很深也不会栈溢出
+        int depth = 100000;
+        var source = "begin var x = 1; print(" + "-(x+".repeat(depth) + "1" + ")".repeat(depth) + "); end";
+        var instructions = analyse(source);
+        assertEquals(3 * depth + 3, instructions.size());
+        assertEquals(instructions, analyseAst(source));
+    }
+
+    private String analyseParallel(String source, int jobs) {
+        var input = ByteBuffer.wrap(source.getBytes(StandardCharsets.UTF_8));
+        var tokens = TokenBuffer.tokenize(new Tokenizer(new StringIter(input)));
+        try {
+            return new Analyser(tokens, jobs).analyse().toString();
+        } catch (CompileError e) {
+            return e.toString();
+        }
+    }
+
+    @Test
+    public void testParallelStatements() {
+        // u 在第一段里赋值，在最后一段里读取；或者反过来，读取在赋值之前
+        for (var order : List.of(new String[] { "u = 1;", "print(u);" }, new String[] { "print(u);", "u = 1;" })) {
+            var sb = new StringBuilder("begin var a = 1; var u;\n").append(order[0]).append('\n');
+            for (int i = 0; i < 40000; i++) {
+                sb.append(i % 2 == 0 ? "a = a * 3 - 1;\n" : "print(-(a + 2) / 4);\n");
+            }
+            var source = sb.append(order[1]).append("\nend").toString();
+            assertEquals(analyseParallel(source, 1), analyseParallel(source, 4));
+        }
+        assertEquals("Analyze Error: NotInitialized, at: Pos(row: 1, col: 6)",
+                analyseParallel("begin var u;\nprint(u);\nend", 4));
+    }
+
+    @Test
+    public void testInstructionSink() throws CompileError {
+        var source = "begin const k = 2; var a = -k * 3; var b; b = a - (1 + 2); print(-b); print(b / 0); x = 1; end";
+        var ostream = new ByteArrayOutputStream();
+        var output = new PrintStream(ostream, true, StandardCharsets.UTF_8);
+        var input = ByteBuffer.wrap(source.getBytes(StandardCharsets.UTF_8));
+        try {
+            new Analyser(new Tokenizer(new StringIter(input))).analyse(new PrintSink(output));
+            fail();
+        } catch (CompileError e) {
+        }
+
+        // 每条语句分析完就输出，出错之前的语句已经输出了；折叠不受影响
+        var expected = new StringBuilder();
+        for (var instruction : analyse(source.replace(" x = 1;", ""))) {
+            expected.append(instruction).append(System.lineSeparator());
+        }
+        assertEquals(expected.toString(), ostream.toString(StandardCharsets.UTF_8));
+        assertEquals("LIT -6", expected.toString().lines().findFirst().get());
+    }
+
+    /** runStreaming 最后一次得到的输出，出错时也有 */
+    private String streamed;
+
+    private String run(String source) throws CompileError {
+        var ostream = new ByteArrayOutputStream();
+        var output = new PrintStream(ostream, true, StandardCharsets.UTF_8);
+        new MiniVm(analyse(source), output).Run();
+        return ostream.toString(StandardCharsets.UTF_8);
+    }
+
+    private String runStreaming(String source) throws CompileError {
+        var ostream = new ByteArrayOutputStream();
+        var output = new PrintStream(ostream, true, StandardCharsets.UTF_8);
+        var input = new ByteArrayInputStream(source.getBytes(StandardCharsets.UTF_8));
+        try {
+            new Analyser(new Tokenizer(new StringIter(input, 8))).analyse(new StreamingVm(output));
+        } finally {
+            // 出错时已经执行的语句的输出也要拿到
+            streamed = ostream.toString(StandardCharsets.UTF_8);
+        }
+        return streamed;
+    }
+
+    @Test
+    public void testStreamingRunMatchesRun() throws CompileError {
+        var source = "begin const k = 2; var a = -k * 3; var b; b = a - (1 + 2); print(-b); print(a * b / k); "
+                + "a = a - 1 - 1 - 1; print(a); end";
+        assertEquals("9\n27\n-9\n", run(source));
+        assertEquals(run(source), runStreaming(source));
+
+        // 编译错误之前的语句已经执行并输出了，一次性分析则什么都不输出
+        var broken = source.replace(" print(a);", " print(a); x = 1; print(0);");
+        try {
+            run(broken);
+            fail();
+        } catch (CompileError e) {
+        }
+        try {
+            runStreaming(broken);
+            fail();
+        } catch (CompileError e) {
+            assertEquals(run(source), streamed);
+        }
+
+        // 运行时错误也在同一条指令上出现
+        var failing = source.replace(" print(a);", " print(a / 0); print(a);");
+        try {
+            runStreaming(failing);
+            fail();
+        } catch (ArithmeticException e) {
+            assertEquals("9\n27\n", streamed);
+        }
+    }
 }
@@ -1,6 +1,8 @@
 package miniplc0java;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.ByteArrayOutputStream;
 import java.io.PrintStream;
@@ -9,9 +11,16 @@ import java.util.List;
 
 import org.junit.Test;
 
+import miniplc0java.instruction.Bytecode;
 import miniplc0java.instruction.Instruction;
 import miniplc0java.instruction.Operation;
+import miniplc0java.vm.ClosureVm;
+import miniplc0java.vm.JitVm;
 import miniplc0java.vm.MiniVm;
+import miniplc0java.vm.StreamingVm;
+import miniplc0java.vm.register.RegisterLowering;
+import miniplc0java.vm.register.RegisterOperation;
+import miniplc0java.vm.register.RegisterVm;
 
 public class MiniVmTest {
 
@@ -113,4 +122,182 @@ public class MiniVmTest {
 
         assertEquals(String.format("Stack top should be 1, 2", outString), "1\n2\n", outString);
     }
+
+    @Test
+    public void testBytecode() {
+        var instructions = new ArrayList<Instruction>();
+        instructions.add(new Instruction(Operation.LIT, 7));
+        instructions.add(new Instruction(Operation.LOD, 0));
+        instructions.add(new Instruction(Operation.LIT, 6));
+        instructions.add(new Instruction(Operation.MUL));
+        instructions.add(new Instruction(Operation.STO, 0));
+        instructions.add(new Instruction(Operation.LOD, 0));
+        instructions.add(new Instruction(Operation.WRT));
+
+        var utf8 = java.nio.charset.StandardCharsets.UTF_8;
+        ByteArrayOutputStream ostream = new ByteArrayOutputStream();
+        var output = new PrintStream(ostream, true, utf8);
+        new MiniVm(Bytecode.encode(instructions), output).Run();
+        output.close();
+
+        assertEquals("7 * 6 should equal to 42", "42\n", ostream.toString(utf8));
+    }
+
+    @Test
+    public void testJitMatchesInterpreter() {
+        var instructions = new ArrayList<Instruction>();
+        // 超过 255 个栈位置，用到 wide 形式的局部变量
+        for (int i = 0; i < 300; i++) {
+            instructions.add(new Instruction(Operation.LIT, i * 100000));
+        }
+        instructions.add(new Instruction(Operation.LOD, 280));
+        instructions.add(new Instruction(Operation.STO, 3));
+        for (int i = 0; i < 299; i++) {
+            instructions.add(new Instruction(i % 2 == 0 ? Operation.ADD : Operation.SUB));
+        }
+        instructions.add(new Instruction(Operation.LIT, -7));
+        instructions.add(new Instruction(Operation.DIV));
+        instructions.add(new Instruction(Operation.WRT));
+
+        var utf8 = java.nio.charset.StandardCharsets.UTF_8;
+        ByteArrayOutputStream ostream = new ByteArrayOutputStream();
+        var output = new PrintStream(ostream, true, utf8);
+        new JitVm(instructions, output).Run();
+        output.close();
+
+        assertEquals(RunVm(instructions), ostream.toString(utf8));
+    }
+
+    @Test
+    public void testJitSplitsLargeProgram() {
+        var instructions = new ArrayList<Instruction>();
+        // 几千个栈位置、几万条指令，要切成很多段，跨段读写栈位置
+        for (int i = 0; i < 3000; i++) {
+            instructions.add(new Instruction(Operation.LIT, i * 7919 - 10000));
+        }
+        for (int i = 0; i < 20000; i++) {
+            int a = (i * 37) % 3000;
+            int b = (i * 101 + 7) % 3000;
+            instructions.add(new Instruction(Operation.LOD, a));
+            instructions.add(new Instruction(Operation.LOD, b));
+            instructions.add(new Instruction(i % 3 == 0 ? Operation.ADD : i % 3 == 1 ? Operation.SUB : Operation.MUL));
+            instructions.add(new Instruction(Operation.LIT, i % 5 + 1));
+            instructions.add(new Instruction(Operation.DIV));
+            if (i % 100 == 0) {
+                instructions.add(new Instruction(Operation.LOD, (i * 13) % 3000));
+                instructions.add(new Instruction(Operation.WRT));
+            }
+            instructions.add(new Instruction(Operation.STO, (i * 13) % 3000));
+        }
+        for (int i = 0; i < 3000; i += 97) {
+            instructions.add(new Instruction(Operation.LOD, i));
+            instructions.add(new Instruction(Operation.WRT));
+        }
+
+        var utf8 = java.nio.charset.StandardCharsets.UTF_8;
+        ByteArrayOutputStream ostream = new ByteArrayOutputStream();
+        var output = new PrintStream(ostream, true, utf8);
+        var vm = new JitVm(instructions, output);
+        vm.Run();
+        vm.Run();
+        output.close();
+
+        assertTrue(vm.getChunkCount() > 1);
+        var expected = RunVm(instructions);
+        assertEquals(expected + expected, ostream.toString(utf8));
+    }
+
+    @Test
+    public void testClosureMatchesInterpreter() {
+        var instructions = new ArrayList<Instruction>();
+        instructions.add(new Instruction(Operation.LIT, 7));
+        instructions.add(new Instruction(Operation.LIT, -3));
+        instructions.add(new Instruction(Operation.LOD, 0));
+        instructions.add(new Instruction(Operation.LOD, 1));
+        instructions.add(new Instruction(Operation.DIV));
+        instructions.add(new Instruction(Operation.STO, 1));
+        instructions.add(new Instruction(Operation.LOD, 1));
+        instructions.add(new Instruction(Operation.WRT));
+        instructions.add(new Instruction(Operation.SUB));
+        instructions.add(new Instruction(Operation.WRT));
+
+        var utf8 = java.nio.charset.StandardCharsets.UTF_8;
+        ByteArrayOutputStream ostream = new ByteArrayOutputStream();
+        var output = new PrintStream(ostream, true, utf8);
+        var vm = new ClosureVm(instructions, output);
+        vm.Run();
+        vm.Run();
+        output.close();
+
+        assertEquals("-2\n9\n-2\n9\n", ostream.toString(utf8));
+    }
+
+    @Test
+    public void testRegisterLowering() {
+        var instructions = new ArrayList<Instruction>();
+        instructions.add(new Instruction(Operation.LIT, 1));
+        instructions.add(new Instruction(Operation.LIT, 0));
+        instructions.add(new Instruction(Operation.LIT, 2));
+        instructions.add(new Instruction(Operation.LOD, 0));
+        instructions.add(new Instruction(Operation.LOD, 2));
+        instructions.add(new Instruction(Operation.MUL));
+        instructions.add(new Instruction(Operation.WRT));
+        instructions.add(new Instruction(Operation.LOD, 0));
+        instructions.add(new Instruction(Operation.LOD, 1));
+        instructions.add(new Instruction(Operation.DIV));
+        instructions.add(new Instruction(Operation.STO, 2));
+        instructions.add(new Instruction(Operation.LOD, 2));
+        instructions.add(new Instruction(Operation.WRT));
+
+        // 常量直接折叠，LOD a; LOD b; DIV; STO c 只剩一条 DIV，除以 0 留到运行时
+        var program = RegisterLowering.lower(instructions);
+        assertEquals(3, program.getInstructions().size());
+        assertEquals(RegisterOperation.DIV, program.getInstructions().get(1).getOpt());
+        assertEquals(2, program.getInstructions().get(1).getDst());
+
+        var utf8 = java.nio.charset.StandardCharsets.UTF_8;
+        ByteArrayOutputStream ostream = new ByteArrayOutputStream();
+        var output = new PrintStream(ostream, true, utf8);
+        try {
+            new RegisterVm(program, output).Run();
+            fail("Division by zero should fail at run time");
+        } catch (ArithmeticException e) {
+            // 期望的错误
+        }
+        output.close();
+        assertEquals("2\n", ostream.toString(utf8));
+    }
+
+    @Test
+    public void testStreamingVm() {
+        var instructions = new ArrayList<Instruction>();
+        instructions.add(new Instruction(Operation.LIT, 7));
+        instructions.add(new Instruction(Operation.LIT, -3));
+        instructions.add(new Instruction(Operation.LOD, 0));
+        instructions.add(new Instruction(Operation.LODDIV, 1));
+        instructions.add(new Instruction(Operation.NEG));
+        instructions.add(new Instruction(Operation.STO, 1));
+        instructions.add(new Instruction(Operation.LODWRT, 1));
+        instructions.add(new Instruction(Operation.SUB));
+        instructions.add(new Instruction(Operation.WRT));
+        instructions.add(new Instruction(Operation.LIT, 1));
+        instructions.add(new Instruction(Operation.LIT, 0));
+        instructions.add(new Instruction(Operation.DIV));
+
+        var utf8 = java.nio.charset.StandardCharsets.UTF_8;
+        ByteArrayOutputStream ostream = new ByteArrayOutputStream();
+        var output = new PrintStream(ostream, true, utf8);
+        var vm = new StreamingVm(output);
+        // 每条指令收到时就执行，出错之前的输出已经写出去了
+        try {
+            for (var instruction : instructions) {
+                vm.emit(instruction);
+            }
+            fail();
+        } catch (ArithmeticException e) {
+        }
+        output.close();
+
+        assertEquals("2\n5\n", ostream.toString(utf8));
+    }
 }
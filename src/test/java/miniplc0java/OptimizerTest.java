@@ -0,0 +1,203 @@
+package miniplc0java;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import miniplc0java.instruction.Instruction;
+import miniplc0java.instruction.Operation;
+import miniplc0java.optimizer.DeadCodeEliminator;
+import miniplc0java.optimizer.Optimizer;
+import miniplc0java.optimizer.Precomputer;
+import miniplc0java.optimizer.Rules;
+import miniplc0java.optimizer.Superinstructions;
+import miniplc0java.vm.MiniVm;
+
+public class OptimizerTest {
+
+    @Test
+    public void testPeephole() {
+        var instructions = List.of(
+                new Instruction(Operation.LIT, 5),
+                new Instruction(Operation.LOD, 0),
+                new Instruction(Operation.STO, 0),
+                new Instruction(Operation.LOD, 0),
+                new Instruction(Operation.LIT, 3),
+                new Instruction(Operation.ADD),
+                new Instruction(Operation.LIT, 3),
+                new Instruction(Operation.SUB),
+                new Instruction(Operation.LIT, 2),
+                new Instruction(Operation.LIT, 0),
+                new Instruction(Operation.DIV),
+                new Instruction(Operation.MUL),
+                new Instruction(Operation.WRT));
+
+        var optimizer = new Optimizer();
+        var result = optimizer.optimize(instructions);
+
+        // LIT 3; ADD; LIT 3; SUB 合并成 LIT 0; ADD 后被删掉，除以 0 保留
+        var expected = List.of(
+                new Instruction(Operation.LIT, 5),
+                new Instruction(Operation.LOD, 0),
+                new Instruction(Operation.LIT, 2),
+                new Instruction(Operation.LIT, 0),
+                new Instruction(Operation.DIV),
+                new Instruction(Operation.MUL),
+                new Instruction(Operation.WRT));
+        assertEquals(expected, result);
+        assertEquals(2, (int) optimizer.getRemovedCounts().get("redundant-store"));
+        assertEquals(2, (int) optimizer.getRemovedCounts().get("combine-additive"));
+        assertEquals(2, (int) optimizer.getRemovedCounts().get("identity"));
+    }
+
+    @Test
+    public void testSuperinstructions() {
+        var instructions = List.of(
+                new Instruction(Operation.LIT, 7),
+                new Instruction(Operation.LIT, 6),
+                new Instruction(Operation.LOD, 0),
+                new Instruction(Operation.MUL),
+                new Instruction(Operation.LIT, 4),
+                new Instruction(Operation.SUB),
+                new Instruction(Operation.STO, 0),
+                new Instruction(Operation.LOD, 0),
+                new Instruction(Operation.WRT));
+
+        var fused = new Superinstructions().fuse(instructions);
+        var expected = List.of(
+                new Instruction(Operation.LIT, 7),
+                new Instruction(Operation.LIT, 6),
+                new Instruction(Operation.LODMUL, 0),
+                new Instruction(Operation.LITSUB, 4),
+                new Instruction(Operation.STO, 0),
+                new Instruction(Operation.LODWRT, 0));
+        assertEquals(expected, fused);
+        // 展开后和原来的指令完全一样，输出的文本也只有基本指令
+        assertEquals(instructions, Instruction.expandAll(fused));
+        assertEquals("LOD 0" + System.lineSeparator() + "WRT", fused.get(5).toString());
+
+        var utf8 = java.nio.charset.StandardCharsets.UTF_8;
+        var ostream = new ByteArrayOutputStream();
+        var output = new PrintStream(ostream, true, utf8);
+        new MiniVm(fused, output).Run();
+        output.close();
+        assertEquals("38\n", ostream.toString(utf8));
+    }
+
+    @Test
+    public void testStrengthReduction() {
+        var instructions = new ArrayList<Instruction>();
+        int[] values = { Integer.MIN_VALUE, -9, -8, -7, -1, 0, 1, 7, 8, Integer.MAX_VALUE };
+        for (int value : values) {
+            for (int k : new int[] { 1, 3, 30 }) {
+                for (var op : new Operation[] { Operation.MUL, Operation.DIV }) {
+                    instructions.add(new Instruction(Operation.LIT, value));
+                    instructions.add(new Instruction(Operation.LIT, 1 << k));
+                    instructions.add(new Instruction(op));
+                    instructions.add(new Instruction(Operation.WRT));
+                }
+            }
+            instructions.add(new Instruction(Operation.LIT, value));
+            instructions.add(new Instruction(Operation.LIT, -1));
+            instructions.add(new Instruction(Operation.DIV));
+            instructions.add(new Instruction(Operation.WRT));
+        }
+
+        var reduced = new Optimizer(Rules.STRENGTH_REDUCTION).optimize(instructions);
+        assertEquals(Operation.SHL, reduced.get(1).getOpt());
+        assertEquals(Operation.SAR, reduced.get(4).getOpt());
+        // 负数右移后和除法一样向零取整
+        assertEquals(run(instructions), run(reduced));
+        assertEquals(run(instructions), run(Instruction.expandAll(reduced)));
+    }
+
+    private static String run(List<Instruction> instructions) {
+        var utf8 = java.nio.charset.StandardCharsets.UTF_8;
+        var ostream = new ByteArrayOutputStream();
+        var output = new PrintStream(ostream, true, utf8);
+        new MiniVm(instructions, output).Run();
+        output.close();
+        return ostream.toString(utf8);
+    }
+
+    @Test
+    public void testDeadCodeElimination() {
+        // var a = 1; var b; var c = 2; b = a + 5; b = c / 0; a = a * 2; c = 7; print(c);
+        var instructions = List.of(
+                new Instruction(Operation.LIT, 1),
+                new Instruction(Operation.LIT, 0),
+                new Instruction(Operation.LIT, 2),
+                new Instruction(Operation.LOD, 0),
+                new Instruction(Operation.LIT, 5),
+                new Instruction(Operation.ADD),
+                new Instruction(Operation.STO, 1),
+                new Instruction(Operation.LOD, 2),
+                new Instruction(Operation.LIT, 0),
+                new Instruction(Operation.DIV),
+                new Instruction(Operation.STO, 1),
+                new Instruction(Operation.LOD, 0),
+                new Instruction(Operation.LIT, 2),
+                new Instruction(Operation.MUL),
+                new Instruction(Operation.STO, 0),
+                new Instruction(Operation.LIT, 7),
+                new Instruction(Operation.STO, 2),
+                new Instruction(Operation.LOD, 2),
+                new Instruction(Operation.WRT));
+
+        var eliminator = new DeadCodeEliminator();
+        var result = eliminator.eliminate(instructions);
+
+        // 除以 0 的存储不能删，所以 b 留下来；a 只在死存储里被读，最后也被删掉；偏移重新编号
+        var expected = List.of(
+                new Instruction(Operation.LIT, 0),
+                new Instruction(Operation.LIT, 2),
+                new Instruction(Operation.LOD, 1),
+                new Instruction(Operation.LIT, 0),
+                new Instruction(Operation.DIV),
+                new Instruction(Operation.STO, 0),
+                new Instruction(Operation.LIT, 7),
+                new Instruction(Operation.STO, 1),
+                new Instruction(Operation.LOD, 1),
+                new Instruction(Operation.WRT));
+        assertEquals(expected, result);
+    }
+
+    @Test
+    public void testPrecompute() {
+        var instructions = new ArrayList<>(List.of(
+                new Instruction(Operation.LIT, 6),
+                new Instruction(Operation.LIT, 7),
+                new Instruction(Operation.LOD, 0),
+                new Instruction(Operation.LOD, 1),
+                new Instruction(Operation.MUL),
+                new Instruction(Operation.STO, 1),
+                new Instruction(Operation.LOD, 1),
+                new Instruction(Operation.WRT),
+                new Instruction(Operation.LODSUB, 0),
+                new Instruction(Operation.NEG),
+                new Instruction(Operation.WRT)));
+
+        var result = new Precomputer().precompute(instructions);
+        var expected = List.of(
+                new Instruction(Operation.LIT, 42),
+                new Instruction(Operation.WRT),
+                new Instruction(Operation.LIT, -36),
+                new Instruction(Operation.WRT));
+        assertEquals(expected, result);
+        assertEquals(run(instructions), run(result));
+
+        // 超出步数限制
+        assertNull(new Precomputer(instructions.size() - 1).precompute(instructions));
+
+        // 除以 0 要留到运行时报错
+        instructions.add(new Instruction(Operation.LIT, 0));
+        instructions.add(new Instruction(Operation.DIV));
+        assertNull(new Precomputer().precompute(instructions));
+    }
+}
@@ -3,6 +3,326 @@ package miniplc0java;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import miniplc0java.analyser.Analyser;
+import miniplc0java.error.CompileError;
+import miniplc0java.error.ErrorCode;
+import miniplc0java.error.TokenizeError;
+import miniplc0java.tokenizer.ParallelTokenizer;
+import miniplc0java.tokenizer.StringIter;
+import miniplc0java.tokenizer.Token;
+import miniplc0java.tokenizer.TokenBuffer;
+import miniplc0java.tokenizer.TokenPipeline;
+import miniplc0java.tokenizer.TokenStream;
+import miniplc0java.tokenizer.TokenType;
+import miniplc0java.tokenizer.Tokenizer;
+import miniplc0java.util.LineIndex;
+
 public class TokenizerTest {
 
+    private static final String PROGRAM = "begin\n  const k = -3;\n  var a = 2 * k;\n  print((a + 10) / 4);\nend\n";
+
+    private Tokenizer tokenizer(String source) throws IOException {
+        var input = new ByteArrayInputStream(source.getBytes(StandardCharsets.UTF_8));
+        return new Tokenizer(new StringIter(input));
+    }
+
+    @Test
+    public void testTokenBufferMatchesTokenizer() throws Exception {
+        var tokens = TokenBuffer.tokenize(tokenizer(PROGRAM));
+        assertNull(tokens.getError());
+
+        var tokenizer = tokenizer(PROGRAM);
+        for (int i = 0; i < tokens.size(); i++) {
+            assertEquals(tokenizer.nextToken(), tokens.get(i));
+        }
+        assertEquals(TokenType.EOF, tokens.getType(tokens.size() - 1));
+    }
+
+    @Test
+    public void testStreamingMatchesWholeInput() throws Exception {
+        var whole = TokenBuffer.tokenize(tokenizer(PROGRAM));
+        var input = new ByteArrayInputStream(PROGRAM.getBytes(StandardCharsets.UTF_8));
+        var streamed = TokenBuffer.tokenize(new Tokenizer(new StringIter(input, 4)));
+
+        assertEquals(whole.size(), streamed.size());
+        for (int i = 0; i < whole.size(); i++) {
+            assertEquals(whole.get(i).toString(), streamed.get(i).toString());
+        }
+    }
+
+    @Test
+    public void testStreamingKeepsRecentLines() throws Exception {
+        var source = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            source.append("  a").append(i).append(";\n");
+        }
+        source.append("  #");
+        var bytes = source.toString().getBytes(StandardCharsets.UTF_8);
+
+        var expected = TokenBuffer.tokenize(new Tokenizer(new StringIter(ByteBuffer.wrap(bytes)))).getError();
+        assertNotNull(expected);
+
+        var iter = new StringIter(new ByteArrayInputStream(bytes), 64);
+        var streamed = new Tokenizer(iter);
+        try {
+            while (true) {
+                var token = streamed.nextToken();
+                assertFalse(token.getTokenType() == TokenType.EOF);
+                // 刚分析出的 token 所在的行一定还在
+                token.getStartPos();
+            }
+        } catch (TokenizeError e) {
+            assertEquals(ErrorCode.InvalidInput, e.getErr());
+            assertEquals(expected.getPos().toString(), e.getPos().toString());
+        }
+        // 只保留了最近的行
+        assertTrue(iter.getLineIndex().getFirstLine() > 0);
+    }
+
+    @Test
+    public void testBoundedLineIndex() {
+        var lines = new LineIndex(4);
+        for (int row = 1; row < 10; row++) {
+            lines.addLineStart(row * 10);
+        }
+        assertEquals(10, lines.getLineCount());
+        assertEquals(6, lines.getFirstLine());
+        assertEquals("Pos(row: 9, col: 0)", lines.posOf(90).toString());
+        assertEquals("Pos(row: 8, col: 9)", lines.posOf(89).toString());
+        assertEquals("Pos(row: 6, col: 5)", lines.posOf(65).toString());
+        assertEquals(65, lines.offsetOf(lines.posOf(65)));
+        try {
+            lines.posOf(59);
+            fail("line 5 should no longer be kept");
+        } catch (IllegalStateException e) {
+        }
+    }
+
+    @Test
+    public void testNonAsciiInput() throws Exception {
+        // 非 ASCII 字符不能出现在源程序里，报错的位置按字符算和按字节算一样
+        var tokens = TokenBuffer.tokenize(tokenizer("begin\n  var caf\u00e9 = 1;\nend\n"));
+        assertNotNull(tokens.getError());
+        assertEquals(ErrorCode.InvalidInput, tokens.getError().getErr());
+        assertEquals("Pos(row: 1, col: 9)", tokens.getError().getPos().toString());
+        assertEquals("caf", tokens.getName(2));
+
+        tokens = TokenBuffer.tokenize(tokenizer("begin\u2003end"));
+        assertEquals(ErrorCode.InvalidInput, tokens.getError().getErr());
+        assertEquals("Pos(row: 0, col: 5)", tokens.getError().getPos().toString());
+    }
+
+    @Test
+    public void testMappedFile() throws Exception {
+        var file = Files.createTempFile("miniplc0", ".txt");
+        try {
+            Files.write(file, PROGRAM.getBytes(StandardCharsets.UTF_8));
+            var whole = TokenBuffer.tokenize(tokenizer(PROGRAM));
+            var mapped = TokenBuffer.tokenize(new Tokenizer(new StringIter(StringIter.map(file))));
+            assertNull(mapped.getError());
+            assertEquals(whole.size(), mapped.size());
+            for (int i = 0; i < whole.size(); i++) {
+                assertEquals(whole.get(i).toString(), mapped.get(i).toString());
+            }
+
+            // 空文件也能映射
+            Files.write(file, new byte[0]);
+            var empty = TokenBuffer.tokenize(new Tokenizer(new StringIter(file)));
+            assertEquals(1, empty.size());
+            assertEquals(TokenType.EOF, empty.getType(0));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testLineIndexBoundaries() throws Exception {
+        // 偏移：a=0 \n=1 \n=2 b=3 c=4 \n=5
+        var tokenizer = tokenizer("a\n\nbc\n");
+        while (tokenizer.nextToken().getTokenType() != TokenType.EOF) {
+        }
+        var lines = tokenizer.getLineIndex();
+        assertEquals(4, lines.getLineCount());
+        assertEquals("Pos(row: 0, col: 0)", lines.posOf(0).toString());
+        // 换行符属于它结束的那一行
+        assertEquals("Pos(row: 0, col: 1)", lines.posOf(1).toString());
+        assertEquals("Pos(row: 1, col: 0)", lines.posOf(2).toString());
+        assertEquals("Pos(row: 2, col: 0)", lines.posOf(3).toString());
+        assertEquals("Pos(row: 2, col: 2)", lines.posOf(5).toString());
+        // 文件结尾在最后一个换行之后的空行上
+        assertEquals("Pos(row: 3, col: 0)", lines.posOf(6).toString());
+        for (int offset = 0; offset <= 6; offset++) {
+            assertEquals(offset, lines.offsetOf(lines.posOf(offset)));
+        }
+    }
+
+    @Test
+    public void testKeywordsAndIdentifiers() throws Exception {
+        var tokens = TokenBuffer.tokenize(tokenizer("begin beginx a1 var vars end"));
+        assertEquals(TokenType.Begin, tokens.getType(0));
+        assertEquals(TokenType.Ident, tokens.getType(1));
+        assertEquals("beginx", tokens.getName(1));
+        assertEquals("a1", tokens.getName(2));
+        assertEquals(TokenType.Var, tokens.getType(3));
+        assertEquals(TokenType.Ident, tokens.getType(4));
+        assertEquals(TokenType.End, tokens.getType(5));
+
+        // 首字母不同、但和关键字的哈希相同的标识符
+        var colliding = TokenBuffer.tokenize(tokenizer("far nar jar und konst hrint regin var"));
+        for (int i = 0; i < 7; i++) {
+            assertEquals(TokenType.Ident, colliding.getType(i));
+        }
+        assertEquals("regin", colliding.getName(6));
+        assertEquals(TokenType.Var, colliding.getType(7));
+    }
+
+    @Test
+    public void testIntegerOverflow() throws Exception {
+        var tokens = TokenBuffer.tokenize(tokenizer("2147483647 2147483648"));
+        assertEquals(Integer.MAX_VALUE, tokens.getIntValue(0));
+        assertNotNull(tokens.getError());
+        assertEquals(ErrorCode.IntegerOverflow, tokens.getError().getErr());
+        assertEquals(11, tokens.getError().getPos().col);
+    }
+
+    @Test
+    public void testParallelMatchesSequential() throws Exception {
+        var sb = new StringBuilder("begin\n");
+        for (int i = 0; i < 20000; i++) {
+            sb.append("  var v").append(i).append(" = ").append(i).append(" * (v0 + 1);\n");
+        }
+        sb.append("end\n");
+        var source = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+
+        var sequential = TokenBuffer.tokenize(new Tokenizer(new StringIter(source)));
+        var parallel = ParallelTokenizer.tokenize(source, 4);
+        assertEquals(sequential.size(), parallel.size());
+        for (int i = 0; i < sequential.size(); i++) {
+            assertEquals(sequential.get(i).toString(), parallel.get(i).toString());
+            // 每一段的标识符编号合并后按第一次出现的顺序重新编号，和顺序分析一样
+            assertEquals(sequential.get(i).getIdentifierId(), parallel.get(i).getIdentifierId());
+        }
+    }
+
+    @Test
+    public void testIdentifierInterning() throws Exception {
+        var sb = new StringBuilder("begin ");
+        for (int i = 0; i < 1000; i++) {
+            sb.append("a").append(i).append(" b a").append(i).append(' ');
+        }
+        var tokens = TokenBuffer.tokenize(tokenizer(sb.append("end").toString()));
+        var identifiers = tokens.getIdentifiers();
+        // 同名的标识符编号相同，编号按第一次出现的顺序分配
+        assertEquals(1001, identifiers.size());
+        assertEquals(0, tokens.getIdentifierId(1));
+        assertEquals(1, tokens.getIdentifierId(2));
+        assertEquals(0, tokens.getIdentifierId(3));
+        assertEquals(1, tokens.getIdentifierId(5));
+        assertEquals(tokens.getIdentifierId(3000), identifiers.intern("a999"));
+        assertEquals(1001, identifiers.intern("c"));
+    }
+
+    @Test
+    public void testPipelineMatchesSequential() throws Exception {
+        // 足够多的 token，让环形缓冲区写满，最后跟一个词法错误
+        var sb = new StringBuilder("begin\n");
+        for (int i = 0; i < 10000; i++) {
+            sb.append("  v").append(i % 97).append(" = (").append(i).append(" - v1) * 2;\n");
+        }
+        var source = sb.append("  v1 = 1 # 2;\nend\n").toString();
+
+        var sequential = tokenizer(source);
+        var pipeline = new TokenPipeline(tokenizer(source)).start();
+        try {
+            while (true) {
+                Token expected;
+                try {
+                    expected = sequential.nextToken();
+                } catch (TokenizeError e) {
+                    try {
+                        pipeline.nextToken();
+                        fail();
+                    } catch (TokenizeError actual) {
+                        assertEquals(e.getErr(), actual.getErr());
+                        assertEquals(e.getPos().toString(), actual.getPos().toString());
+                    }
+                    break;
+                }
+                assertEquals(expected, pipeline.nextToken());
+            }
+        } finally {
+            pipeline.close();
+        }
+    }
+
+    @Test
+    public void testStreamingTokenizeManyLines() throws Exception {
+        // 行数超过流式读取保留的行数，全部分析完之后再输出第一个 token
+        var source = new StringBuilder();
+        for (int i = 0; i < 70001; i++) {
+            source.append("print(i);\n");
+        }
+        var bytes = source.toString().getBytes(StandardCharsets.UTF_8);
+        var whole = TokenBuffer.tokenize(new Tokenizer(new StringIter(ByteBuffer.wrap(bytes))));
+        var iter = new StringIter(new ByteArrayInputStream(bytes), 64);
+        var streamed = TokenBuffer.tokenize(new Tokenizer(iter));
+        assertNull(streamed.getError());
+        assertTrue(iter.getLineIndex().getFirstLine() > 0);
+
+        assertEquals(whole.size(), streamed.size());
+        assertEquals("Line: 0 Column: 0 Type: Print Value: print", streamed.get(0).toString());
+        for (int i = 0; i < whole.size(); i++) {
+            assertEquals(whole.get(i).toString(), streamed.get(i).toString());
+            assertEquals(whole.get(i).getEndPos().toString(), streamed.get(i).getEndPos().toString());
+        }
+    }
+
+    @Test
+    public void testPipelineErrorBehindBlankLines() throws Exception {
+        // 出错的 token 后面隔着很多空行，它所在的行早就不在行首偏移表里了
+        var source = "begin\nprint(b)" + "\n".repeat(100000) + ";\nend\n";
+        var bytes = source.getBytes(StandardCharsets.UTF_8);
+        String expected = null;
+        try {
+            new Analyser(new Tokenizer(new StringIter(ByteBuffer.wrap(bytes)))).analyse();
+            fail();
+        } catch (CompileError e) {
+            expected = e.toString();
+        }
+        assertTrue(expected.contains("Pos(row: 1, col: 6)"));
+
+        var pipeline = new TokenPipeline(new Tokenizer(new StringIter(new ByteArrayInputStream(bytes), 64))).start();
+        try {
+            new Analyser(pipeline).analyse();
+            fail();
+        } catch (CompileError e) {
+            assertEquals(expected, e.toString());
+        } finally {
+            pipeline.close();
+        }
+    }
+
+    @Test
+    public void testPipelineClose() throws Exception {
+        // 永远不会结束的来源，记下生产者线程
+        var producer = new Thread[1];
+        TokenStream endless = () -> {
+            producer[0] = Thread.currentThread();
+            return new Token(TokenType.Semicolon, ';', 0, 1, null);
+        };
+        var pipeline = new TokenPipeline(endless).start();
+        for (int i = 0; i < 10; i++) {
+            assertEquals(TokenType.Semicolon, pipeline.nextToken().getTokenType());
+        }
+        // 消费者提前结束，关闭之后生产者线程应该退出
+        pipeline.close();
+        producer[0].join(5000);
+        assertFalse(producer[0].isAlive());
+    }
 }